@@ -33,7 +33,9 @@ module DomainAnnotation {
     length - length of profile
     model_type - domain model type
     trusted_cutoff - (optional) trusted cutoff of domain model for HMM libraries
-    @optional cdd_id trusted_cutoff
+    checksum - (optional) MD5 of the model in HMM libraries, used to find
+        models that changed between library versions
+    @optional cdd_id trusted_cutoff checksum
     */
     typedef structure {
         domain_accession accession;
@@ -43,6 +45,7 @@ module DomainAnnotation {
         int length;
         model_type model_type;
         float trusted_cutoff;
+        string checksum;
     } DomainModel;
 
     typedef structure {
@@ -137,12 +140,24 @@ module DomainAnnotation {
     dms_ref dms_ref - set of domain models that will be searched in defined genome
     string ws - workspace
     string output_result_id - id of resulting object of type DomainAnnotation
+    domain_annotation_ref prior_annotation_ref - optional reference to an
+        earlier DomainAnnotation of a previous version of the same genome,
+        made with the same set of domain models.  Hits for features with
+        the same id and protein sequence are copied from it, and only new
+        or changed features are searched.
+    int streaming - optional; if 1, the genome is read and searched
+        a window of proteins at a time, with memory use independent of
+        the size of the genome.  Meant for very large (e.g., metagenome)
+        genomes.  Can't be combined with prior_annotation_ref.
+    @optional prior_annotation_ref streaming
     */
     typedef structure {
         genome_ref genome_ref;
         dms_ref dms_ref;
         string ws;
         domain_annotation_ref output_result_id;
+        domain_annotation_ref prior_annotation_ref;
+        int streaming;
     } SearchDomainsInput;
 
     /*
@@ -159,6 +174,82 @@ module DomainAnnotation {
     */
     funcdef search_domains(SearchDomainsInput input) returns (SearchDomainsOutput output) authentication required;
 
+    /*
+    string genome_set_ref - reference to a KBaseCollections.GenomeSet or
+        KBaseCollections.GenomeList of genomes to annotate
+    dms_ref dms_ref - set of domain models that will be searched in every genome
+    string ws - workspace
+    string output_suffix - (optional) each genome's DomainAnnotation is named
+        after the genome, plus this suffix (default "_domains")
+    @optional output_suffix
+    */
+    typedef structure {
+        string genome_set_ref;
+        dms_ref dms_ref;
+        string ws;
+        string output_suffix;
+    } SearchDomainsBatchInput;
+
+    /*
+    Output is a report, and one DomainAnnotation object per genome
+    mapping<genome_ref, domain_annotation_ref> output_result_ids - the
+        DomainAnnotation made for each genome that was annotated
+    */
+    typedef structure {
+        mapping<genome_ref, domain_annotation_ref> output_result_ids;
+        string report_name;
+        string report_ref;
+    } SearchDomainsBatchOutput;
+
+    /* 
+    @id ws KBaseGenomes.ProteinSet
+    */
+    typedef string protein_set_ref;
+
+    /*
+    Domain hits in a set of proteins that aren't in a genome.
+    protein_set_ref protein_set_ref - reference to the proteins searched
+    dms_ref used_dms_ref - domain models used for search
+    mapping<string protein_id, mapping<domain_accession, list<domain_place>>> data -
+    the domains found in each protein; proteins with no domains are left out
+    */
+    typedef structure {
+        protein_set_ref protein_set_ref;
+        dms_ref used_dms_ref;
+        mapping<string protein_id, mapping<domain_accession, list<domain_place>>> data;
+    } ProteinDomainAnnotation;
+
+    /* 
+    @id ws DomainAnnotation.ProteinDomainAnnotation
+    */
+    typedef string protein_domain_annotation_ref;
+
+    /*
+    protein_set_ref protein_set_ref - proteins to search for domains
+    dms_ref dms_ref - set of domain models that will be searched
+    string ws - workspace
+    string output_result_id - id of resulting object of type ProteinDomainAnnotation
+    */
+    typedef structure {
+        protein_set_ref protein_set_ref;
+        dms_ref dms_ref;
+        string ws;
+        protein_domain_annotation_ref output_result_id;
+    } SearchProteinDomainsInput;
+
+    /*
+    Search for domains in a ProteinSet; output_result_id in the
+    output is a ProteinDomainAnnotation
+    */
+    funcdef search_protein_domains(SearchProteinDomainsInput input) returns (SearchDomainsOutput output) authentication required;
+
+    /*
+    Search for domains in every genome in a GenomeSet or GenomeList.
+    Proteins from many genomes are searched together, so this is
+    much faster than searching each genome separately.
+    */
+    funcdef search_domains_batch(SearchDomainsBatchInput input) returns (SearchDomainsBatchOutput output) authentication required;
+
     /* returns version number of service */
     funcdef version() returns (string version);
 };
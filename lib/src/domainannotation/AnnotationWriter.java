@@ -0,0 +1,166 @@
+package domainannotation;
+
+import java.io.*;
+import java.util.*;
+
+import com.fasterxml.jackson.core.*;
+
+import us.kbase.common.service.Tuple2;
+import us.kbase.common.service.Tuple5;
+import us.kbase.common.service.UObject;
+
+/**
+   Writes a DomainAnnotation as JSON with a JsonGenerator, one
+   element at a time, so saving it doesn't need a second, serialized
+   copy of the whole object in memory.  Hits can come from the
+   annotation itself, and from any number of HitStores (by the
+   position of each feature, as in DomainAnnotationImpl.searchGenome);
+   hits in HitStores are written straight from their arrays, without
+   being added to the annotation.  The output is the same as
+   serializing the annotation after adding all the hits with
+   HitStore.addTo.  Metadata for the object (as in
+   DomainAnnotationImpl.getMetadata) is collected while writing.
+*/
+public class AnnotationWriter {
+    private final DomainAnnotation da;
+    private final List<HitStore> hits;
+    private final Map<String,Integer> featIdToPos;
+
+    // for metadata
+    private final Set<String> annotatedFeatures = new HashSet<String>();
+    private final Set<String> accessions = new HashSet<String>();
+
+    /**
+       Makes a writer for an annotation, and hits from HitStores;
+       featIdToPos maps each feature id to its position in the
+       HitStores.  hits may be empty, and featIdToPos null if it is.
+    */
+    public AnnotationWriter(DomainAnnotation da,
+                            List<HitStore> hits,
+                            Map<String,Integer> featIdToPos) {
+        this.da = da;
+        this.hits = hits;
+        this.featIdToPos = featIdToPos;
+        for (HitStore store : hits)
+            store.sortByFeature();
+    }
+
+    /**
+       writes the annotation to a file, as UTF-8 JSON
+    */
+    public void write(File f) throws IOException {
+        JsonGenerator jg = UObject.getMapper().getFactory().createGenerator(f, JsonEncoding.UTF8);
+        try {
+            write(jg);
+        }
+        finally {
+            jg.close();
+        }
+    }
+
+    /**
+       writes the annotation to a generator, in the same order
+       of fields as Jackson would
+    */
+    public void write(JsonGenerator jg) throws IOException {
+        annotatedFeatures.clear();
+        accessions.clear();
+        jg.writeStartObject();
+        if (da.getGenomeRef() != null)
+            jg.writeStringField("genome_ref", da.getGenomeRef());
+        if (da.getUsedDmsRef() != null)
+            jg.writeStringField("used_dms_ref", da.getUsedDmsRef());
+        if (da.getData() != null) {
+            jg.writeObjectFieldStart("data");
+            for (Map.Entry<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> contig : da.getData().entrySet()) {
+                jg.writeArrayFieldStart(contig.getKey());
+                for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element : contig.getValue())
+                    writeElement(jg, element);
+                jg.writeEndArray();
+            }
+            jg.writeEndObject();
+        }
+        if (da.getContigToSizeAndFeatureCount() != null)
+            jg.writeObjectField("contig_to_size_and_feature_count", da.getContigToSizeAndFeatureCount());
+        if (da.getFeatureToContigAndIndex() != null) {
+            jg.writeObjectFieldStart("feature_to_contig_and_index");
+            for (Map.Entry<String, Tuple2<String, Long>> index : da.getFeatureToContigAndIndex().entrySet()) {
+                jg.writeFieldName(index.getKey());
+                jg.writeObject(index.getValue());
+            }
+            jg.writeEndObject();
+        }
+        for (Map.Entry<String, Object> property : da.getAdditionalProperties().entrySet())
+            jg.writeObjectField(property.getKey(), property.getValue());
+        jg.writeEndObject();
+    }
+
+    /**
+       writes one annotation element as a JSON tuple, with the
+       element's own hits followed by hits from each HitStore
+    */
+    private void writeElement(JsonGenerator jg,
+                              Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element) throws IOException {
+        // each accession's hits in the HitStores, as
+        // {store, index} pairs
+        Map<String, List<int[]>> storeHits = new TreeMap<String, List<int[]>>();
+        Integer pos = ((featIdToPos==null) ? null : featIdToPos.get(element.getE1()));
+        if (pos != null) {
+            for (int s=0; s<hits.size(); s++) {
+                HitStore store = hits.get(s);
+                for (int i=store.getFirstHit(pos.intValue()); i<store.getLastHit(pos.intValue()); i++) {
+                    String accession = store.getAccession(i);
+                    List<int[]> l = storeHits.get(accession);
+                    if (l == null) {
+                        l = new ArrayList<int[]>();
+                        storeHits.put(accession, l);
+                    }
+                    l.add(new int[] { s, i });
+                }
+            }
+        }
+        Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = element.getE5();
+        Set<String> elementAccessions = new TreeSet<String>(storeHits.keySet());
+        if (domains != null)
+            elementAccessions.addAll(domains.keySet());
+
+        jg.writeStartArray();
+        jg.writeString(element.getE1());
+        jg.writeNumber(element.getE2().longValue());
+        jg.writeNumber(element.getE3().longValue());
+        jg.writeNumber(element.getE4().longValue());
+        jg.writeStartObject();
+        for (String accession : elementAccessions) {
+            jg.writeArrayFieldStart(accession);
+            List<Tuple5<Long, Long, Double, Double, Double>> places = ((domains==null) ? null : domains.get(accession));
+            if (places != null) {
+                for (Tuple5<Long, Long, Double, Double, Double> place : places)
+                    jg.writeObject(place);
+            }
+            List<int[]> l = storeHits.get(accession);
+            if (l != null) {
+                for (int[] hit : l)
+                    hits.get(hit[0]).writePlace(jg, hit[1]);
+            }
+            jg.writeEndArray();
+        }
+        jg.writeEndObject();
+        jg.writeEndArray();
+        if (!elementAccessions.isEmpty()) {
+            annotatedFeatures.add(element.getE1());
+            accessions.addAll(elementAccessions);
+        }
+    }
+
+    /**
+       Returns metadata for the object, with the same (historical)
+       keys as DomainAnnotationImpl.getMetadata; only valid after
+       the annotation has been written
+    */
+    public Map<String,String> getMetadata() {
+        Map<String,String> metadata = new HashMap<String,String>();
+        metadata.put("annotated_domains",""+annotatedFeatures.size());
+        metadata.put("annotated_features",""+accessions.size());
+        return metadata;
+    }
+}
@@ -0,0 +1,67 @@
+package domainannotation;
+
+/**
+   Shares a fixed number of CPU cores among the RPS-BLAST and HMMER
+   processes that run at the same time.  Each process asks for
+   cores when it starts, and is given an even share of the cores
+   that are free at that time, divided among the jobs that are
+   expected to run concurrently but haven't started yet.  Cores are
+   given back when the process finishes, so jobs that start later
+   get the cores freed up by jobs that have already finished.
+*/
+public class CpuBudget {
+    private final int totalCores;
+    private int freeCores;
+    private int activeJobs = 0;
+
+    /**
+       make a budget for a given number of cores; if that number
+       is less than 1, all cores on this machine are used
+    */
+    public CpuBudget(int totalCores) {
+        if (totalCores < 1)
+            totalCores = Runtime.getRuntime().availableProcessors();
+        this.totalCores = totalCores;
+        freeCores = totalCores;
+    }
+
+    /**
+       returns the total number of cores in the budget
+    */
+    public int getTotalCores() {
+        return totalCores;
+    }
+
+    /**
+       returns the number of cores not currently in use
+    */
+    public synchronized int getFreeCores() {
+        return freeCores;
+    }
+
+    /**
+       Get cores for a new job.  expectedJobs is the total number of
+       jobs the caller expects to run concurrently, including this
+       one.  Blocks until at least one core is free, and returns
+       the number of cores (always at least 1) reserved for the job;
+       these must be returned with release() when the job is done.
+    */
+    public synchronized int acquire(int expectedJobs) throws InterruptedException {
+        while (freeCores < 1)
+            wait();
+        int waitingJobs = Math.max(1, expectedJobs - activeJobs);
+        int cores = Math.max(1, freeCores / waitingJobs);
+        freeCores -= cores;
+        activeJobs++;
+        return cores;
+    }
+
+    /**
+       return cores reserved by acquire()
+    */
+    public synchronized void release(int cores) {
+        freeCores += cores;
+        activeJobs--;
+        notifyAll();
+    }
+}
@@ -166,6 +166,45 @@ public class DomainAnnotationClient {
         return res.get(0);
     }
 
+    /**
+     * <p>Original spec-file function name: search_protein_domains</p>
+     * <pre>
+     * Search for domains in a ProteinSet; output_result_id in the
+     * output is a ProteinDomainAnnotation
+     * </pre>
+     * @param   input   instance of type {@link domainannotation.SearchProteinDomainsInput SearchProteinDomainsInput}
+     * @return   parameter "output" of type {@link domainannotation.SearchDomainsOutput SearchDomainsOutput}
+     * @throws IOException if an IO exception occurs
+     * @throws JsonClientException if a JSON RPC exception occurs
+     */
+    public SearchDomainsOutput searchProteinDomains(SearchProteinDomainsInput input, RpcContext... jsonRpcContext) throws IOException, JsonClientException {
+        List<Object> args = new ArrayList<Object>();
+        args.add(input);
+        TypeReference<List<SearchDomainsOutput>> retType = new TypeReference<List<SearchDomainsOutput>>() {};
+        List<SearchDomainsOutput> res = caller.jsonrpcCall("DomainAnnotation.search_protein_domains", args, retType, true, true, jsonRpcContext, this.serviceVersion);
+        return res.get(0);
+    }
+
+    /**
+     * <p>Original spec-file function name: search_domains_batch</p>
+     * <pre>
+     * Search for domains in every genome in a GenomeSet or GenomeList.
+     * Proteins from many genomes are searched together, so this is
+     * much faster than searching each genome separately.
+     * </pre>
+     * @param   input   instance of type {@link domainannotation.SearchDomainsBatchInput SearchDomainsBatchInput}
+     * @return   parameter "output" of type {@link domainannotation.SearchDomainsBatchOutput SearchDomainsBatchOutput}
+     * @throws IOException if an IO exception occurs
+     * @throws JsonClientException if a JSON RPC exception occurs
+     */
+    public SearchDomainsBatchOutput searchDomainsBatch(SearchDomainsBatchInput input, RpcContext... jsonRpcContext) throws IOException, JsonClientException {
+        List<Object> args = new ArrayList<Object>();
+        args.add(input);
+        TypeReference<List<SearchDomainsBatchOutput>> retType = new TypeReference<List<SearchDomainsBatchOutput>>() {};
+        List<SearchDomainsBatchOutput> res = caller.jsonrpcCall("DomainAnnotation.search_domains_batch", args, retType, true, true, jsonRpcContext, this.serviceVersion);
+        return res.get(0);
+    }
+
     /**
      * <p>Original spec-file function name: version</p>
      * <pre>
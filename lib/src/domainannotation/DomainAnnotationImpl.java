@@ -4,6 +4,7 @@ import java.io.*;
 import java.nio.file.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 import java.net.URL;
 import java.text.SimpleDateFormat;
@@ -22,7 +23,6 @@ import us.kbase.common.service.Tuple11;
 import us.kbase.common.service.Tuple2;
 import us.kbase.common.service.Tuple4;
 import us.kbase.common.service.Tuple5;
-import us.kbase.common.utils.AlignUtil;
 import us.kbase.common.utils.CorrectProcess;
 import us.kbase.common.utils.RpsBlastParser;
 import us.kbase.common.taskqueue.TaskQueueConfig;
@@ -48,10 +48,256 @@ public class DomainAnnotationImpl {
     private static String MAX_BLAST_EVALUE = "1e-04";
     
     public static final String domainAnnotationWsType = "KBaseGeneFamilies.DomainAnnotation";
+    // ProteinDomainAnnotation is defined in this module's spec,
+    // not in KBaseGeneFamilies
+    public static final String proteinDomainAnnotationWsType = "DomainAnnotation.ProteinDomainAnnotation";
     public static final String domainAlignmentsWsType = "KBaseGeneFamilies.DomainAlignments";
 
     protected static File tempDir = new File("/kb/module/work/");
-    
+
+    /**
+       maximum number of domain libraries searched at the same time;
+       defaults to the number of cores on this machine.
+    */
+    protected static int maxConcurrentLibraries = Runtime.getRuntime().availableProcessors();
+
+    /**
+       number of pieces to split each proteome into; each piece
+       is searched by a separate RPS-BLAST or HMMER process.
+       1 (the default) searches the whole proteome at once.
+    */
+    protected static int searchShards = 1;
+
+    /**
+       cores available to RPS-BLAST and HMMER processes; set by
+       search-threads in deploy.cfg, or all cores on this machine
+    */
+    protected static CpuBudget cpuBudget = new CpuBudget(0);
+
+    /**
+       if true, output from RPS-BLAST and HMMER is parsed as it
+       is produced, through a named pipe, rather than saved to
+       a temp file and parsed after the search finishes.
+    */
+    protected static boolean streamSearchOutput = false;
+
+    /**
+       if true, hmmscan writes its per-domain table (--domtblout)
+       instead of the full text report, which is much smaller and
+       faster to parse.  Set by hmmer-output-format = domtblout
+       in deploy.cfg.
+    */
+    protected static boolean hmmerDomTable = false;
+
+    /**
+       how to run HMMER libraries:  "hmmscan" (the default) always
+       runs hmmscan; "hmmsearch" always runs hmmsearch, with the
+       library as query and the proteome as target; "auto" picks
+       hmmsearch for large proteomes searched against libraries
+       that are not too big (see chooseHmmerProgram)
+    */
+    protected static String hmmerStrategy = "hmmscan";
+
+    /**
+       in "auto" mode, hmmsearch is only used on proteomes with
+       at least this many residues...
+    */
+    protected static long hmmsearchMinResidues = 1000000L;
+
+    /**
+       ... and libraries with at most this many models
+    */
+    protected static int hmmsearchMaxModels = 5000;
+
+    /**
+       how to search HMM libraries in small jobs:  "external" (the
+       default) always runs a HMMER program; "java" scores jobs with
+       up to javaHmmerMaxResidues residues in this process, with
+       HmmEngine
+    */
+    protected static String hmmerEngine = "external";
+
+    /**
+       largest job (in total residues) scored with HmmEngine
+    */
+    protected static long javaHmmerMaxResidues = 100000L;
+
+    /**
+       largest traceback (in cells, or bytes per search thread) that
+       HmmEngine may need for one protein and model; jobs with a
+       longer protein or model are searched with hmmscan
+    */
+    protected static long javaHmmerMaxCells = 16000000L;
+
+    /**
+       how to search RPS-BLAST libraries in small jobs:  "external"
+       (the default) always runs rpsblast; "java" scores jobs with
+       up to javaPssmMaxResidues residues in this process, with
+       PssmEngine
+    */
+    protected static String pssmEngine = "external";
+
+    /**
+       largest job (in total residues) scored with PssmEngine
+    */
+    protected static long javaPssmMaxResidues = 5000L;
+
+    /**
+       if true, HmmEngine and PssmEngine only score each protein
+       against the candidate models picked by the library's
+       KmerIndex (if it has one)
+    */
+    protected static boolean prefilter = false;
+
+    /**
+       pool used to parse large output files from hmmscan and
+       RPS-BLAST in parallel (see ParallelOutputParser); set by
+       parse-threads in deploy.cfg (all cores by default), or null
+       if parse-threads is 1
+    */
+    protected static ForkJoinPool parsePool = new ForkJoinPool();
+
+    /**
+       output files smaller than this are parsed on one thread
+    */
+    protected static long parallelParseMinBytes = 64L * 1024L * 1024L;
+
+    /**
+       paths of the DomainLibrary fields fetched by
+       getSearchLibrary; everything but the domains
+    */
+    protected static final List<String> librarySearchPaths = Arrays.asList("id",
+                                                                           "source",
+                                                                           "source_url",
+                                                                           "version",
+                                                                           "release_date",
+                                                                           "program",
+                                                                           "domain_prefix",
+                                                                           "dbxref_prefix",
+                                                                           "library_files");
+
+    /**
+       paths of the Genome fields fetched by getGenomeSubset
+    */
+    protected static final List<String> genomeSearchPaths = Arrays.asList("features/[*]/id",
+                                                                          "features/[*]/location",
+                                                                          "features/[*]/protein_translation",
+                                                                          "contig_ids",
+                                                                          "contig_lengths",
+                                                                          "scientific_name");
+
+    /**
+       number of genomes searched together by search_domains_batch
+    */
+    protected static int batchGenomesPerSearch = 50;
+
+    /**
+       number of genomes fetched at the same time by
+       search_domains_batch
+    */
+    protected static int batchFetchThreads = 4;
+
+    /**
+       number of proteins searched at a time in streaming mode
+       (see StreamingSearch)
+    */
+    protected static int streamingWindowProteins = 100000;
+
+    /**
+       cache of hits from previous searches, shared by all genomes;
+       null (the default) if hit-cache-dir isn't set in deploy.cfg
+    */
+    protected static HitCache hitCache = null;
+
+    /**
+       receives each domain hit parsed from RPS-BLAST or HMMER
+       output.  featurePos is the id of the query sequence in the
+       FASTA file; start and stop are 1-offset positions in the protein.
+    */
+    public interface DomainHitCallback {
+        public void next(int featurePos,
+                         String accession,
+                         long start,
+                         long stop,
+                         double evalue,
+                         double bitscore,
+                         double coverage) throws Exception;
+    }
+
+    /**
+       reads optional settings from the service configuration
+       (the DomainAnnotation section of deploy.cfg)
+    */
+    public static void configure(Map<String,String> config) {
+        if (config==null)
+            return;
+        maxConcurrentLibraries = Math.max(1, getIntSetting(config, "max-concurrent-libraries", maxConcurrentLibraries));
+        searchShards = Math.max(1, getIntSetting(config, "search-shards", searchShards));
+        cpuBudget = new CpuBudget(getIntSetting(config, "search-threads", 0));
+        streamSearchOutput = getBooleanSetting(config, "stream-search-output", streamSearchOutput);
+        String value = config.get("hmmer-output-format");
+        if ((value != null) && (value.trim().length() > 0))
+            hmmerDomTable = value.trim().equals("domtblout");
+        value = config.get("hmmer-strategy");
+        if ((value != null) && (value.trim().length() > 0))
+            hmmerStrategy = value.trim();
+        hmmsearchMinResidues = getIntSetting(config, "hmmsearch-min-residues", (int)hmmsearchMinResidues);
+        hmmsearchMaxModels = getIntSetting(config, "hmmsearch-max-models", hmmsearchMaxModels);
+        value = config.get("hmmer-engine");
+        if ((value != null) && (value.trim().length() > 0))
+            hmmerEngine = value.trim();
+        javaHmmerMaxResidues = getIntSetting(config, "java-hmmer-max-residues", (int)javaHmmerMaxResidues);
+        javaHmmerMaxCells = getIntSetting(config, "java-hmmer-max-cells", (int)javaHmmerMaxCells);
+        value = config.get("pssm-engine");
+        if ((value != null) && (value.trim().length() > 0))
+            pssmEngine = value.trim();
+        javaPssmMaxResidues = getIntSetting(config, "java-pssm-max-residues", (int)javaPssmMaxResidues);
+        prefilter = getBooleanSetting(config, "prefilter", prefilter);
+        int parseThreads = getIntSetting(config, "parse-threads", 0);
+        if (parsePool != null)
+            parsePool.shutdown();
+        if (parseThreads == 1)
+            parsePool = null;
+        else if (parseThreads < 1)
+            parsePool = new ForkJoinPool();
+        else
+            parsePool = new ForkJoinPool(parseThreads);
+        parallelParseMinBytes = getIntSetting(config, "parallel-parse-min-mb", 64) * 1024L * 1024L;
+        batchGenomesPerSearch = Math.max(1, getIntSetting(config, "batch-genomes-per-search", batchGenomesPerSearch));
+        batchFetchThreads = Math.max(1, getIntSetting(config, "batch-fetch-threads", batchFetchThreads));
+        streamingWindowProteins = Math.max(1, getIntSetting(config, "streaming-window-proteins", streamingWindowProteins));
+        value = config.get("hit-cache-dir");
+        if ((value != null) && (value.trim().length() > 0))
+            hitCache = new HitCache(new File(value.trim()),
+                                    getIntSetting(config, "hit-cache-max-mb", 1024) * 1024L * 1024L);
+    }
+
+    /**
+       gets a true/false setting from the configuration, or the
+       default value if it is missing or blank
+    */
+    private static boolean getBooleanSetting(Map<String,String> config,
+                                             String key,
+                                             boolean defaultValue) {
+        String value = config.get(key);
+        if ((value == null) || (value.trim().length() == 0))
+            return defaultValue;
+        return value.trim().equalsIgnoreCase("true");
+    }
+
+    /**
+       gets an integer setting from the configuration, or the
+       default value if it is missing or blank
+    */
+    private static int getIntSetting(Map<String,String> config,
+                                     String key,
+                                     int defaultValue) {
+        String value = config.get(key);
+        if ((value == null) || (value.trim().length() == 0))
+            return defaultValue;
+        return Integer.parseInt(value.trim());
+    }
+
     /**
        creates a workspace client; if token is null, client can
        only read public workspaces.
@@ -178,18 +424,50 @@ public class DomainAnnotationImpl {
                                               String id,
                                               DomainAnnotation da,
                                               List<ProvenanceAction> provenance) throws Exception {
-        ObjectSaveData data = new ObjectSaveData()
-            .withType(domainAnnotationWsType)
-            .withMeta(getMetadata(da))
-            .withProvenance(provenance)
-            .withData(new UObject(da));
+        return saveDomainAnnotation(wc, ws, id, da, new ArrayList<HitStore>(), null, provenance);
+    }
+
+    /**
+       save a DomainAnnotation to workspace, with provenance,
+       adding hits from HitStores (see AnnotationWriter).  The
+       object is written to a temp file with a JsonGenerator, and
+       sent to the workspace from that file, so there is never a
+       serialized copy of it in memory.  returns ref
+    */
+    public static String saveDomainAnnotation(WorkspaceClient wc,
+                                              String ws,
+                                              String id,
+                                              DomainAnnotation da,
+                                              List<HitStore> hits,
+                                              Map<String,Integer> featIdToPos,
+                                              List<ProvenanceAction> provenance) throws Exception {
+        File jsonFile = File.createTempFile("annotation", ".json", tempDir);
         try {
-            long objid = Long.parseLong(id);
-            data.withObjid(objid);
-        } catch (NumberFormatException ex) {
-            data.withName(id);
+            AnnotationWriter writer = new AnnotationWriter(da, hits, featIdToPos);
+            writer.write(jsonFile);
+            JsonTokenStream jts = new JsonTokenStream(jsonFile);
+            try {
+                jts.setTrustedWholeJson(true);
+                ObjectSaveData data = new ObjectSaveData()
+                    .withType(domainAnnotationWsType)
+                    .withMeta(writer.getMetadata())
+                    .withProvenance(provenance)
+                    .withData(new UObject(jts));
+                try {
+                    long objid = Long.parseLong(id);
+                    data.withObjid(objid);
+                } catch (NumberFormatException ex) {
+                    data.withName(id);
+                }
+                return getRefFromObjectInfo(wc.saveObjects(new SaveObjectsParams().withWorkspace(ws).withObjects(Arrays.asList(data))).get(0));
+            }
+            finally {
+                jts.close();
+            }
+        }
+        finally {
+            jsonFile.delete();
         }
-        return getRefFromObjectInfo(wc.saveObjects(new SaveObjectsParams().withWorkspace(ws).withObjects(Arrays.asList(data))).get(0));
     }
 
     /**
@@ -198,11 +476,11 @@ public class DomainAnnotationImpl {
        which is searched as individual libraries.
     */
     public static SearchDomainsOutput run(String wsURL,
-                                          String shockURL,
-                                          AuthToken token,
+                                          final String shockURL,
+                                          final AuthToken token,
                                           SearchDomainsInput input) throws Exception {
 
-        WorkspaceClient wc = createWsClient(wsURL,token);
+        final WorkspaceClient wc = createWsClient(wsURL,token);
 
         // turn local into absolute paths
         String genomeRef = input.getGenomeRef();
@@ -211,6 +489,9 @@ public class DomainAnnotationImpl {
         String domainModelSetRef = input.getDmsRef();
         if (domainModelSetRef.indexOf("/") == -1)
             domainModelSetRef = input.getWs()+"/"+domainModelSetRef;
+
+        if ((input.getStreaming() != null) && (input.getStreaming().longValue() != 0L))
+            return runStreaming(wc, shockURL, token, input, genomeRef, domainModelSetRef);
         
         // for provenance
         String methodName = "DomainAnnotation.search_domains";
@@ -226,29 +507,128 @@ public class DomainAnnotationImpl {
         String domainAnnotationRef = null;
         try {
             reportText += "Getting DomainModelSet from storage.\n";
-            final DomainModelSet dms = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(domainModelSetRef))).get(0).getData().asClassInstance(DomainModelSet.class);
+            ObjectData dmsData = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(domainModelSetRef))).get(0);
+            final DomainModelSet dms = dmsData.getData().asClassInstance(DomainModelSet.class);
             reportText += "Getting Genome from storage.\n";
-            final Genome genome = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(genomeRef))).get(0).getData().asClassInstance(Genome.class);
+            final Genome genome = getGenomeSubset(wc, genomeRef).getData().asClassInstance(Genome.class);
             Map<String,String> domainLibMap = dms.getDomainLibs();
 
-            // collect one set of annotations per library
-            for (String id : domainLibMap.values()) {
-                reportText += "Running domain search against library "+id;
-                DomainLibrary dl = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(id))).get(0).getData().asClassInstance(DomainLibrary.class);
-                DomainAnnotation results = runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token);
+            // for incremental re-annotation, find the features that
+            // haven't changed since a prior annotation, and the
+            // libraries it used.  Unchanged features are only searched
+            // against new or changed models; hits to other models
+            // are copied over
+            DomainAnnotation prior = null;
+            final Set<String> unchangedFeatures = new HashSet<String>();
+            final Set<String> changedFeatures = new HashSet<String>();
+            Map<String,String> priorLibMap = new HashMap<String,String>();
+            String priorRef = input.getPriorAnnotationRef();
+            if ((priorRef != null) && (priorRef.length() > 0)) {
+                if (priorRef.indexOf("/") == -1)
+                    priorRef = input.getWs()+"/"+priorRef;
+                reportText += "Getting prior DomainAnnotation from storage.\n";
+                prior = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(priorRef))).get(0).getData().asClassInstance(DomainAnnotation.class);
+                if (getRefFromObjectInfo(dmsData.getInfo()).equals(prior.getUsedDmsRef()))
+                    priorLibMap = domainLibMap;
+                else {
+                    reportText += "Getting prior DomainModelSet from storage.\n";
+                    priorLibMap = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(prior.getUsedDmsRef()))).get(0).getData().asClassInstance(DomainModelSet.class).getDomainLibs();
+                }
+                reportText += "Getting prior Genome from storage.\n";
+                Genome priorGenome = getGenomeSubset(wc, prior.getGenomeRef()).getData().asClassInstance(Genome.class);
+                unchangedFeatures.addAll(findUnchangedFeatures(priorGenome, genome));
+                priorGenome = null;
+                for (Feature feat : genome.getFeatures())
+                    if ((feat.getId() != null) && !unchangedFeatures.contains(feat.getId()))
+                        changedFeatures.add(feat.getId());
+                reportText += "Found "+unchangedFeatures.size()+" features that are unchanged since the prior DomainAnnotation.\n";
+            }
+            final DomainAnnotation priorAnnotation = prior;
+            final Map<String,String> priorLibs = priorLibMap;
+            final List<String> libraryNotes = Collections.synchronizedList(new ArrayList<String>());
 
-                // combine all the results into one object
-                if (da==null)
-                    da = results;
-                else
-                    combineData(results,da);
+            // collect one set of hits per library; libraries are
+            // searched concurrently, and hits are kept in compact
+            // HitStores, merged by feature when the annotation
+            // is saved
+            final Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement = new HashMap<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>();
+            da = makeEmptyAnnotation(genome, genomeRef, domainModelSetRef, 0, posToElement);
+            final Map<String,Integer> featIdToPos = new HashMap<String,Integer>();
+            List<Feature> features = genome.getFeatures();
+            for (int pos=0; pos<features.size(); pos++)
+                if (posToElement.containsKey(pos))
+                    featIdToPos.put(features.get(pos).getId(), pos);
+            final String gRef = genomeRef;
+            final String dmsRef = domainModelSetRef;
+            List<String> libRefs = new ArrayList<String>(domainLibMap.values());
+            final HitMerger merger = new HitMerger(libRefs.size());
+            final Map<String,String> libRefToPrefix = new HashMap<String,String>();
+            for (String prefix : domainLibMap.keySet())
+                libRefToPrefix.put(domainLibMap.get(prefix), prefix);
+            final int concurrentLibraries = Math.max(1, Math.min(maxConcurrentLibraries, libRefs.size()));
+            long cacheHits = (hitCache==null ? 0 : hitCache.getHits());
+            long cacheMisses = (hitCache==null ? 0 : hitCache.getMisses());
+            ExecutorService pool = Executors.newFixedThreadPool(concurrentLibraries);
+            try {
+                CompletionService<HitStore> searches = new ExecutorCompletionService<HitStore>(pool);
+                for (int l=0; l<libRefs.size(); l++) {
+                    final String id = libRefs.get(l);
+                    final int slot = l;
+                    reportText += "Running domain search against library "+id+"\n";
+                    searches.submit(new Callable<HitStore>() {
+                            @Override
+                            public HitStore call() throws Exception {
+                                HitStore hits;
+                                if (priorAnnotation == null)
+                                    hits = searchGenome(genome, posToElement, getSearchLibrary(wc, id, shockURL, token), shockURL, token, concurrentLibraries, libraryNotes);
+                                else {
+                                    // incremental searches compare the models
+                                    // in each library, so need all of it
+                                    DomainLibrary dl = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(id))).get(0).getData().asClassInstance(DomainLibrary.class);
+                                    hits = new HitStore();
+                                    hits.add(runDeltaSearch(wc,
+                                                            genome,
+                                                            gRef,
+                                                            dmsRef,
+                                                            id,
+                                                            dl,
+                                                            priorLibs.get(libRefToPrefix.get(id)),
+                                                            priorAnnotation,
+                                                            unchangedFeatures,
+                                                            changedFeatures,
+                                                            shockURL,
+                                                            token,
+                                                            concurrentLibraries,
+                                                            libraryNotes),
+                                             featIdToPos);
+                                }
+                                merger.add(slot, hits);
+                                return hits;
+                            }
+                        });
+                }
+                for (int i=0; i<libRefs.size(); i++)
+                    getResult(searches.take());
+            }
+            finally {
+                pool.shutdownNow();
             }
+            for (String note : libraryNotes)
+                reportText += note+"\n";
+            if (hitCache != null)
+                reportText += "Found "+(hitCache.getHits()-cacheHits)+" protein searches in the hit cache; ran "+(hitCache.getMisses()-cacheMisses)+" new ones.\n";
 
-            // save final DomainAnnotation object
+            // save final DomainAnnotation object, writing the
+            // hits straight from the merged HitStore
+            HitStore hits = merger.merge();
+            if (merger.getCollisions() > 0)
+                reportText += "Warning: "+merger.getCollisions()+" features were hit by the same accession in more than one library ("+merger.getCollidingAccessions()+"); hits from all libraries were kept.\n";
             domainAnnotationRef = saveDomainAnnotation(wc,
                                                        input.getWs(),
                                                        input.getOutputResultId(),
                                                        da,
+                                                       Arrays.asList(hits),
+                                                       featIdToPos,
                                                        makeProvenance("Domain Annotation",
                                                                       methodName,
                                                                       methodParams));
@@ -281,313 +661,1851 @@ public class DomainAnnotationImpl {
     }
 
     /**
-       Runs a domain search on a single genome, returning annotations.
-       This works on a single library, but needs metadata (references
-       to Genome and DomainModelSet) to populate the annotation object.
+       Runs a domain search on a single genome in streaming mode,
+       which uses bounded memory no matter how big the genome is
+       (see StreamingSearch).  Incremental re-annotation isn't
+       supported in this mode.
     */
-    public static DomainAnnotation runDomainSearch(Genome genome,
-                                                   String genomeRef,
-                                                   String domainModelSetRef,
-                                                   DomainLibrary dl,
+    public static SearchDomainsOutput runStreaming(WorkspaceClient wc,
                                                    String shockURL,
-                                                   AuthToken token) throws Exception {
-        String genomeName = genome.getScientificName();
-        File dbFile = new File(getDomainsDir().getPath()+"/"+dl.getLibraryFiles().get(0).getFileName());
-        File fastaFile = File.createTempFile("proteome", ".fasta", tempDir);
-        File outFile = null;
+                                                   AuthToken token,
+                                                   SearchDomainsInput input,
+                                                   String genomeRef,
+                                                   String domainModelSetRef) throws Exception {
+        // for provenance
+        String methodName = "DomainAnnotation.search_domains";
+        List<UObject> methodParams = Arrays.asList(new UObject(input));
 
-        final Map<String,Long> modelNameToLength = new HashMap<String,Long>();
+        // start building report
+        String reportText = "Search Domains output (streaming):\n";
+        List<String> warnings = null;
+        List<WorkspaceObject> objects = new ArrayList<WorkspaceObject>();
 
-        // save the length of each model, to compute coverage.
-        // This replaces modelNameToRefConsensus in Roman's legacy code:
-        Map<String,DomainModel> libDomains = dl.getDomains();
-        for (String accession : libDomains.keySet()) {
-            DomainModel m = libDomains.get(accession);
-            modelNameToLength.put(accession, m.getLength());
+        String domainAnnotationRef = null;
+        try {
+            if ((input.getPriorAnnotationRef() != null) && (input.getPriorAnnotationRef().length() > 0))
+                throw new IllegalArgumentException("prior_annotation_ref can't be used in streaming mode");
+            reportText += "Getting DomainModelSet from storage.\n";
+            DomainModelSet dms = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(domainModelSetRef))).get(0).getData().asClassInstance(DomainModelSet.class);
+            List<DomainLibrary> libs = new ArrayList<DomainLibrary>();
+            for (String id : dms.getDomainLibs().values()) {
+                reportText += "Running domain search against library "+id+"\n";
+                libs.add(getSearchLibrary(wc, id, shockURL, token));
+            }
+            reportText += "Searching Genome in windows of "+streamingWindowProteins+" proteins.\n";
+            StreamingSearch search = new StreamingSearch(wc, libs, shockURL, token, streamingWindowProteins);
+            domainAnnotationRef = search.run(genomeRef,
+                                             domainModelSetRef,
+                                             input.getWs(),
+                                             input.getOutputResultId(),
+                                             makeProvenance("Domain Annotation",
+                                                            methodName,
+                                                            methodParams));
+            for (String note : search.getNotes())
+                reportText += note+"\n";
+            objects.add(new WorkspaceObject()
+                        .withRef(domainAnnotationRef)
+                        .withDescription("Domain Annotations"));
+        }
+        catch (Exception e) {
+            reportText += "\n\nERROR: "+e.getMessage();
+            warnings = new ArrayList<String>();
+            warnings.add("ERROR: "+e.getMessage());
         }
 
-        // make sure we have local copies of all library files
-        prepareLibraryFiles(dl,shockURL,token);
+        // generate report with list of objects created
+        String[] report = makeReport(wc,
+                                     input.getWs(),
+                                     reportText,
+                                     warnings,
+                                     objects,
+                                     makeProvenance("Domain Annotation Report",
+                                                    methodName,
+                                                    methodParams));
 
-        try {
-            final Map<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> contig2prots =
-                new TreeMap<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>>();
-            FastaWriter fw = new FastaWriter(fastaFile);
-            int protCount = 0;
-            final Map<Integer, Tuple2<String, Long>> posToContigFeatIndex = new LinkedHashMap<Integer, Tuple2<String, Long>>();
-            Map<String, Tuple2<String, Long>> featIdToContigFeatIndex = new TreeMap<String, Tuple2<String, Long>>();
-            // to work around genomes with missing contigs:
-            HashSet<String> realContigs = new HashSet<String>();
-            // write out each protein sequentially into a FASTA file,
-            // keeping track of its (first) position in the genome
-            try {
-                List<Feature> features = genome.getFeatures();
-                int pos = -1;
-                for (Feature feat : features) {
-                    pos++;
-                    String seq = feat.getProteinTranslation();
-                    if (feat.getLocation().size() < 1)
-                        continue;
-                    Tuple4<String, Long, String, Long> loc = feat.getLocation().get(0);
-                    String contigId = loc.getE1();
-                    String featId = feat.getId();
-                    if ((contigId==null) || (featId==null))
-                        continue;
-                    if (seq != null && !seq.isEmpty()) {
-                        fw.write("" + pos, seq);
-                        Tuple2<String, Long> contigFeatIndex = new Tuple2<String, Long>().withE1(contigId);
-                        posToContigFeatIndex.put(pos, contigFeatIndex);
-                        featIdToContigFeatIndex.put(featId, contigFeatIndex);
-                        protCount++;
-                        realContigs.add(contigId);
-                    }
-                    List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> prots = contig2prots.get(contigId);
-                    if (prots == null) {
-                        prots = new ArrayList<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>();
-                        contig2prots.put(contigId, prots);
-                    }
-                    long start = loc.getE3().equals("-") ? (loc.getE2() - loc.getE4() + 1) : loc.getE2();
-                    // fake the stop site based on protein length
-                    long stop;
-                    if (seq != null)
-                        stop = start - 1 + ((seq.length()+1) * 3);
-                    else {
-                        // correct calculation for end of 1st exon:
-                        stop = loc.getE3().equals("-") ? loc.getE2() : (loc.getE2() + loc.getE4() - 1);
-                    }
-                    long dir = loc.getE3().equals("-") ? -1 : +1;
-                    prots.add(new Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>()
-                              .withE1(feat.getId())
-                              .withE2(start)
-                              .withE3(stop)
-                              .withE4(dir)
-                              .withE5(new TreeMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>()));
-                }
-            }
-            finally {
-                try { fw.close(); } catch (Exception ignore) {}
-            }
-            if (protCount == 0)
-                throw new IllegalStateException("There are no protein translations in genome " + genomeName + " (" + genomeRef + ")");
-
-            // make contig-based indices
-            HashMap<String,Long> contigLengths = new HashMap<String,Long>();
-
-            // first, get the reported contigs from genome object
-            List<String> genomeContigs = genome.getContigIds();
-            List<Long> genomeContigLengths = genome.getContigLengths();
-            int nContigs = 0;
-            if (genomeContigs != null)
-                nContigs = genomeContigs.size();
-            for (int contigPos = 0; contigPos < nContigs; contigPos++) {
-                String contigId = genomeContigs.get(contigPos);
-                if (!contig2prots.containsKey(contigId))
-                    continue;
-                long contigLength = 1;
-                if ((genomeContigLengths != null) &&
-                    (genomeContigLengths.size() > contigPos))
-                    contigLength = genomeContigLengths.get(contigPos).longValue();
-                contigLengths.put(contigId, new Long(contigLength));
-            }
-            // next, add any missing contigs as length 1
-            for (String contigId : realContigs) {
-                if (contigLengths.get(contigId) == null)
-                    contigLengths.put(contigId, new Long(1));
-            }
-
-            // map contigs to "size" (both length and # of proteins)
-            Map<String, Tuple2<Long, Long>> contigSizes = new TreeMap<String, Tuple2<Long, Long>>();
-            for (String contigId : contigLengths.keySet()) {
-                List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> prots = contig2prots.get(contigId);
-                Collections.sort(prots, new Comparator<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>() {
-                        @Override
-                        public int compare(Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> o1,
-                                           Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> o2) {
-                            return Long.compare(o1.getE2(), o2.getE2());
-                        }
-                    });
-                long contigLength = contigLengths.get(contigId).longValue();
-                contigSizes.put(contigId, new Tuple2<Long, Long>().withE1(contigLength).withE2((long)prots.size()));
-                for (int i=0; i<prots.size(); i++) {
-                    String featId = prots.get(i).getE1();
-                    Tuple2<String, Long> contigFeatIndex = featIdToContigFeatIndex.get(featId);
-                    if (contigFeatIndex != null)
-                        contigFeatIndex.setE2((long)i);
-                }
-            }
-            
-            // run the appropriate annotation program
-            String program = dl.getProgram();
+        return new SearchDomainsOutput()
+            .withOutputResultId(domainAnnotationRef)
+            .withReportName(report[0])
+            .withReportRef(report[1]);
+    }
 
-            if (program.equals("rpsblast-2.2.30")) {
-                outFile = runRpsBlast(dbFile, fastaFile);
-                RpsBlastParser.processRpsOutput(outFile, new RpsBlastParser.RpsBlastCallback() {
-                    @Override
-                    public void next(String query,
-                                     String subject,
-                                     int qstart,
-                                     String qseq,
-                                     int sstart,
-                                     String sseq,
-                                     String evalue,
-                                     double bitscore,
-                                     double ident) throws Exception {
-                        Long modelLength = modelNameToLength.get(subject);
-                        if (modelLength == null)
-                            throw new IllegalStateException("Unexpected subject name in prs blast result: " + subject);
-                        int featurePos = Integer.parseInt(query);
-                        String alignedSeq = AlignUtil.removeGapsFromSubject((int)(modelLength.longValue()), qseq, sstart - 1, sseq);
-                        int coverage = 100 - AlignUtil.getGapPercent(alignedSeq);
-                        Tuple2<String, Long> contigIdFeatIndex = posToContigFeatIndex.get(featurePos);
-                        long featureIndex = contigIdFeatIndex.getE2();
-                        Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = contig2prots.get(contigIdFeatIndex.getE1()).get((int)featureIndex).getE5();
-                        List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(subject);
-                        if (places == null) {
-                            places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
-                            domains.put(subject, places);
-                        }
-                        int qlen = AlignUtil.removeGaps(qseq).length();
-                        places.add(new Tuple5<Long, Long, Double, Double, Double>()
-                                   .withE1((long)qstart)
-                                   .withE2((long)qstart + qlen - 1)
-                                   .withE3(Double.parseDouble(evalue))
-                                   .withE4(bitscore)
-                                   .withE5(coverage / 100.0));
-                    }
-                });
-            }
-            else if (program.equals("hmmscan-3.1b1")) {
-                outFile = runHmmer(dbFile, fastaFile);
-                BufferedReader infile = IO.openReader(outFile.getPath());
-                if (infile==null)
-                    throw new Exception("failed to open HMMER output");
-
-                int featurePos = -1;
-                while (infile.ready()) {
-                    String buffer = infile.readLine();
-                    if (buffer==null) {
-                        infile.close();
-                        break;
-                    }
-                    if (buffer.startsWith("Query:"))
-                        featurePos = StringUtil.atoi(buffer,7);
-                    else if (buffer.startsWith("Domain annotation for each model (and alignments):")) {
-                        buffer = infile.readLine();
+    /**
+       Runs a domain search on a ProteinSet, saving the hits in a
+       ProteinDomainAnnotation.  Proteins have no locations, so none
+       of the contig-based indices of a DomainAnnotation are made.
+    */
+    public static SearchDomainsOutput runProteins(String wsURL,
+                                                  final String shockURL,
+                                                  final AuthToken token,
+                                                  SearchProteinDomainsInput input) throws Exception {
 
-                        while (buffer.startsWith(">> ")) {
-                            Long modelLength = null;
-                            String modelName = null;
-                            StringTokenizer st = new StringTokenizer(buffer);
-                            try {
-                                st.nextToken();
-                                modelName = st.nextToken();
+        final WorkspaceClient wc = createWsClient(wsURL,token);
 
-                                modelLength = modelNameToLength.get(modelName);
-                                if (modelLength == null)
-                                    throw new IllegalStateException("No recognized domain in HMMER output line '"+buffer+"'");
-                            }
-                            catch (NoSuchElementException e) {
-                                throw new Exception("Format error in HMMER output line '"+buffer+"'");
+        // turn local into absolute paths
+        String proteinSetRef = input.getProteinSetRef();
+        if (proteinSetRef.indexOf("/") == -1)
+            proteinSetRef = input.getWs()+"/"+proteinSetRef;
+        String domainModelSetRef = input.getDmsRef();
+        if (domainModelSetRef.indexOf("/") == -1)
+            domainModelSetRef = input.getWs()+"/"+domainModelSetRef;
+
+        // for provenance
+        String methodName = "DomainAnnotation.search_protein_domains";
+        List<UObject> methodParams = Arrays.asList(new UObject(input));
+
+        // start building report
+        String reportText = "Search Protein Domains output:\n";
+        List<String> warnings = null;
+        List<WorkspaceObject> objects = new ArrayList<WorkspaceObject>();
+
+        String annotationRef = null;
+        try {
+            reportText += "Getting DomainModelSet from storage.\n";
+            DomainModelSet dms = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(domainModelSetRef))).get(0).getData().asClassInstance(DomainModelSet.class);
+            reportText += "Getting ProteinSet from storage.\n";
+            final List<Protein> proteins = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(proteinSetRef))).get(0).getData().asClassInstance(ProteinSet.class).getProteins();
+            if ((proteins == null) || proteins.isEmpty())
+                throw new IllegalStateException("There are no proteins in " + proteinSetRef);
+
+            // search libraries concurrently, as in run()
+            List<String> libRefs = new ArrayList<String>(dms.getDomainLibs().values());
+            final int concurrentLibraries = Math.max(1, Math.min(maxConcurrentLibraries, libRefs.size()));
+            Map<String, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> data = new TreeMap<String, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>();
+            final List<String> libraryNotes = Collections.synchronizedList(new ArrayList<String>());
+            ExecutorService pool = Executors.newFixedThreadPool(concurrentLibraries);
+            try {
+                CompletionService<Map<String, List<DomainHit>>> searches = new ExecutorCompletionService<Map<String, List<DomainHit>>>(pool);
+                for (final String id : libRefs) {
+                    reportText += "Running domain search against library "+id+"\n";
+                    searches.submit(new Callable<Map<String, List<DomainHit>>>() {
+                            @Override
+                            public Map<String, List<DomainHit>> call() throws Exception {
+                                return runProteinSearch(proteins, getSearchLibrary(wc, id, shockURL, token), shockURL, token, concurrentLibraries, libraryNotes);
                             }
-                            buffer = infile.readLine();
-                            buffer = infile.readLine();
-                            buffer = infile.readLine();
-
-                            if (buffer.startsWith(">> "))
-                                continue;
-
-                            while (buffer.length() > 0) {
-                                st = new StringTokenizer(buffer.substring(7));
-                                try {
-                                    double score = StringUtil.atod(st.nextToken());
-                                    st.nextToken(); // bias
-                                    st.nextToken(); // c-evalue
-
-                                    String eString = st.nextToken();  // i-evalue
-                                    // these numbers are 1-offset, for
-                                    // compatibility with RPS-BLAST parsing code:
-                                    int hStart = StringUtil.atoi(st.nextToken());
-                                    int hLength = StringUtil.atoi(st.nextToken()) - hStart + 1;
-
-                                    st.nextToken(); // bounds
-
-                                    // these numbers are 1-offset, for
-                                    // compatibility with RPS-BLAST parsing code:
-                                    int start = StringUtil.atoi(st.nextToken());
-                                    int l = StringUtil.atoi(st.nextToken()) - start + 1;
-
-                                    // save this hit
-                                    double coverage = (double)hLength / (double)modelLength;
-                                    Tuple2<String, Long> contigIdFeatIndex = posToContigFeatIndex.get(featurePos);
-                                    long featureIndex = contigIdFeatIndex.getE2();
-                                    Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = contig2prots.get(contigIdFeatIndex.getE1()).get((int)featureIndex).getE5();
-                                    List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(modelName);
-                                    if (places == null) {
-                                        places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
-                                        domains.put(modelName, places);
-                                    }
-                                    places.add(new Tuple5<Long, Long, Double, Double, Double>()
-                                               .withE1((long)start)
-                                               .withE2((long)start + l - 1)
-                                               .withE3(Double.parseDouble(eString))
-                                               .withE4(score)
-                                               .withE5(coverage));
-                                }
-                                catch (NoSuchElementException e) {
-                                    throw new Exception("Format error in HMMER output line '"+buffer+"'");
-                                }
-                                buffer = infile.readLine();
+                        });
+                }
+                for (int i=0; i<libRefs.size(); i++) {
+                    Map<String, List<DomainHit>> results = getResult(searches.take());
+                    for (String proteinId : results.keySet()) {
+                        Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = data.get(proteinId);
+                        if (domains == null) {
+                            domains = new TreeMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>();
+                            data.put(proteinId, domains);
+                        }
+                        for (DomainHit hit : results.get(proteinId)) {
+                            List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(hit.getAccession());
+                            if (places == null) {
+                                places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
+                                domains.put(hit.getAccession(), places);
                             }
+                            places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                                       .withE1(hit.getStart())
+                                       .withE2(hit.getStop())
+                                       .withE3(hit.getEvalue())
+                                       .withE4(hit.getBitscore())
+                                       .withE5(hit.getCoverage()));
                         }
                     }
                 }
             }
-            else
-                throw new Exception("unsupported domain search program "+program);
+            finally {
+                pool.shutdownNow();
+            }
+            for (String note : libraryNotes)
+                reportText += note+"\n";
+            reportText += "Found domains in "+data.size()+" of "+proteins.size()+" proteins.\n";
 
-            DomainAnnotation rv = new DomainAnnotation()
-                .withGenomeRef(genomeRef)
+            ProteinDomainAnnotation pda = new ProteinDomainAnnotation()
+                .withProteinSetRef(proteinSetRef)
                 .withUsedDmsRef(domainModelSetRef)
-                .withData(contig2prots)
-                .withContigToSizeAndFeatureCount(contigSizes)
-                .withFeatureToContigAndIndex(featIdToContigFeatIndex);
-            return rv;
+                .withData(data);
+            ObjectSaveData saveData = new ObjectSaveData()
+                .withType(proteinDomainAnnotationWsType)
+                .withProvenance(makeProvenance("Protein Domain Annotation",
+                                               methodName,
+                                               methodParams))
+                .withData(new UObject(pda));
+            try {
+                saveData.withObjid(Long.parseLong(input.getOutputResultId()));
+            } catch (NumberFormatException ex) {
+                saveData.withName(input.getOutputResultId());
+            }
+            annotationRef = getRefFromObjectInfo(wc.saveObjects(new SaveObjectsParams().withWorkspace(input.getWs()).withObjects(Arrays.asList(saveData))).get(0));
+            objects.add(new WorkspaceObject()
+                        .withRef(annotationRef)
+                        .withDescription("Protein Domain Annotations"));
         }
-        finally {
-            try { fastaFile.delete(); } catch (Exception ignore) {}
-            if (outFile != null)
-                try { outFile.delete(); } catch (Exception ignore) {}
+        catch (Exception e) {
+            reportText += "\n\nERROR: "+e.getMessage();
+            warnings = new ArrayList<String>();
+            warnings.add("ERROR: "+e.getMessage());
         }
-    }
 
-    public static File getBinDir() {
-        File ret = new File("/kb/module/dependencies/bin");
-        if (!ret.exists())
-            ret.mkdir();
-        return ret;
+        // generate report with list of objects created
+        String[] report = makeReport(wc,
+                                     input.getWs(),
+                                     reportText,
+                                     warnings,
+                                     objects,
+                                     makeProvenance("Protein Domain Annotation Report",
+                                                    methodName,
+                                                    methodParams));
+
+        return new SearchDomainsOutput()
+            .withOutputResultId(annotationRef)
+            .withReportName(report[0])
+            .withReportRef(report[1]);
     }
 
-    private static File getDomainsDir() {
-        File ret = new File(tempDir, "domains");
-        if (!ret.exists())
-            ret.mkdir();
-        return ret;
+    /**
+       Searches a library for domains in a list of proteins, returning
+       the hits in each protein that has any, by protein id.  The
+       proteins' sequences go straight into the search, without any
+       of the per-feature bookkeeping needed for genomes.  Notes for
+       the report are added to notes, as in searchSequences.
+    */
+    public static Map<String, List<DomainHit>> runProteinSearch(final List<Protein> proteins,
+                                                                DomainLibrary dl,
+                                                                String shockURL,
+                                                                AuthToken token,
+                                                                int concurrentLibraries,
+                                                                Collection<String> notes) throws Exception {
+        final Map<String, List<DomainHit>> rv = new HashMap<String, List<DomainHit>>();
+        List<String> seqs = new ArrayList<String>(proteins.size());
+        for (Protein p : proteins)
+            seqs.add(p.getId()==null ? null : p.getSequence());
+        searchSequences(seqs, dl, shockURL, token, concurrentLibraries, new DomainHitCallback() {
+                @Override
+                public void next(int featurePos,
+                                 String accession,
+                                 long start,
+                                 long stop,
+                                 double evalue,
+                                 double bitscore,
+                                 double coverage) {
+                    String id = proteins.get(featurePos).getId();
+                    List<DomainHit> hits = rv.get(id);
+                    if (hits == null) {
+                        hits = new ArrayList<DomainHit>();
+                        rv.put(id, hits);
+                    }
+                    hits.add(new DomainHit(accession, start, stop, evalue, bitscore, coverage));
+                }
+            }, notes);
+        return rv;
     }
 
     /**
-       gets all the required library files out of shock.  Only
-       supports publicly readable libraries for now (private libraries
-       cannot currently be uploaded)
+       Runs a domain search on every genome in a GenomeSet or
+       GenomeList, saving one DomainAnnotation per genome.  Libraries
+       are loaded once for the whole batch.  Genomes are fetched
+       concurrently, and searched in groups of batch-genomes-per-search,
+       with each group's proteins searched together.  Genomes with no
+       proteins are skipped, with a warning.
     */
-    public static void prepareLibraryFiles(DomainLibrary dl,
-                                           String shockURL,
-                                           AuthToken token) throws Exception {
-        File dir = getDomainsDir();
+    public static SearchDomainsBatchOutput runBatch(String wsURL,
+                                                    final String shockURL,
+                                                    final AuthToken token,
+                                                    SearchDomainsBatchInput input) throws Exception {
+
+        final WorkspaceClient wc = createWsClient(wsURL,token);
+
+        // turn local into absolute paths
+        String genomeSetRef = input.getGenomeSetRef();
+        if (genomeSetRef.indexOf("/") == -1)
+            genomeSetRef = input.getWs()+"/"+genomeSetRef;
+        String domainModelSetRef = input.getDmsRef();
+        if (domainModelSetRef.indexOf("/") == -1)
+            domainModelSetRef = input.getWs()+"/"+domainModelSetRef;
+        String suffix = input.getOutputSuffix();
+        if (suffix == null)
+            suffix = "_domains";
+
+        // for provenance
+        String methodName = "DomainAnnotation.search_domains_batch";
+        List<UObject> methodParams = Arrays.asList(new UObject(input));
+
+        // start building report
+        String reportText = "Search Domains batch output:\n";
+        List<String> warnings = new ArrayList<String>();
+        List<WorkspaceObject> objects = new ArrayList<WorkspaceObject>();
+        Map<String,String> outputRefs = new LinkedHashMap<String,String>();
+
+        try {
+            reportText += "Getting DomainModelSet from storage.\n";
+            DomainModelSet dms = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(domainModelSetRef))).get(0).getData().asClassInstance(DomainModelSet.class);
+            reportText += "Getting list of genomes from storage.\n";
+            List<String> genomeRefs = getGenomeRefs(wc, genomeSetRef);
+            reportText += "Annotating "+genomeRefs.size()+" genomes.\n";
+
+            // load each library once, for all the genomes
+            List<String> libraryNotes = new ArrayList<String>();
+            List<DomainLibrary> libs = new ArrayList<DomainLibrary>();
+            for (String id : dms.getDomainLibs().values()) {
+                reportText += "Running domain search against library "+id+"\n";
+                libs.add(getSearchLibrary(wc, id, shockURL, token));
+            }
+
+            for (int first = 0; first < genomeRefs.size(); first += batchGenomesPerSearch) {
+                List<ObjectData> genomeData = fetchGenomes(wc, genomeRefs.subList(first, Math.min(genomeRefs.size(), first+batchGenomesPerSearch)));
+                List<Genome> genomes = new ArrayList<Genome>();
+                List<String> refs = new ArrayList<String>();
+                List<String> names = new ArrayList<String>();
+                for (ObjectData data : genomeData) {
+                    String ref = getRefFromObjectInfo(data.getInfo());
+                    Genome genome = data.getData().asClassInstance(Genome.class);
+                    if (!hasProteins(genome)) {
+                        warnings.add("Skipping genome "+ref+", which has no protein translations");
+                        continue;
+                    }
+                    genomes.add(genome);
+                    refs.add(ref);
+                    names.add(data.getInfo().getE2());
+                }
+                genomeData = null;
+                if (genomes.isEmpty())
+                    continue;
+
+                List<DomainAnnotation> das = searchLibraries(genomes, refs, domainModelSetRef, libs, shockURL, token, libraryNotes);
+                genomes = null;
+                for (int i = 0; i < das.size(); i++) {
+                    String domainAnnotationRef = saveDomainAnnotation(wc,
+                                                                      input.getWs(),
+                                                                      names.get(i)+suffix,
+                                                                      das.get(i),
+                                                                      makeProvenance("Domain Annotation",
+                                                                                     methodName,
+                                                                                     methodParams));
+                    das.set(i, null);
+                    outputRefs.put(refs.get(i), domainAnnotationRef);
+                    objects.add(new WorkspaceObject()
+                                .withRef(domainAnnotationRef)
+                                .withDescription("Domain Annotations for "+names.get(i)));
+                }
+            }
+            for (String note : libraryNotes)
+                reportText += note+"\n";
+            reportText += "Saved "+outputRefs.size()+" DomainAnnotation objects.\n";
+        }
+        catch (Exception e) {
+            reportText += "\n\nERROR: "+e.getMessage();
+            warnings.add("ERROR: "+e.getMessage());
+        }
+
+        // generate report with list of objects created
+        String[] report = makeReport(wc,
+                                     input.getWs(),
+                                     reportText,
+                                     (warnings.isEmpty() ? null : warnings),
+                                     objects,
+                                     makeProvenance("Domain Annotation Report",
+                                                    methodName,
+                                                    methodParams));
+
+        SearchDomainsBatchOutput rv = new SearchDomainsBatchOutput()
+            .withOutputResultIds(outputRefs)
+            .withReportName(report[0])
+            .withReportRef(report[1]);
+
+        return rv;
+    }
+
+    /**
+       Returns the genome refs in a GenomeSet or GenomeList, in order,
+       without duplicates.  Each element of a GenomeSet maps to a list
+       of genome refs.
+    */
+    public static List<String> getGenomeRefs(WorkspaceClient wc,
+                                             String genomeSetRef) throws Exception {
+        ObjectData data = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(genomeSetRef))).get(0);
+        String type = data.getInfo().getE3();
+        Set<String> rv = new LinkedHashSet<String>();
+        if (type.startsWith("KBaseCollections.GenomeSet")) {
+            GenomeSet gs = data.getData().asClassInstance(GenomeSet.class);
+            List<String> ids = gs.getElementOrdering();
+            if (ids == null)
+                ids = new ArrayList<String>(gs.getElements().keySet());
+            for (String id : ids)
+                rv.addAll(gs.getElements().get(id));
+        }
+        else if (type.startsWith("KBaseCollections.GenomeList"))
+            rv.addAll(data.getData().asClassInstance(GenomeList.class).getElements());
+        else
+            throw new IllegalArgumentException("Error: "+genomeSetRef+" is a "+type+", not a GenomeSet or GenomeList");
+        return new ArrayList<String>(rv);
+    }
+
+    /**
+       Fetches a Genome from the workspace with only the fields
+       used in domain searches:  the id, location and protein
+       translation of each feature, the contigs and their lengths,
+       and the scientific name.  Everything else in the Genome
+       (DNA sequence, publications, orthologs, etc.) is left on the
+       server, which makes big genomes much faster to load and
+       much smaller in memory.
+    */
+    public static ObjectData getGenomeSubset(WorkspaceClient wc,
+                                             String ref) throws Exception {
+        return wc.getObjectSubset(Arrays.asList(new SubObjectIdentity()
+                                                .withRef(ref)
+                                                .withIncluded(genomeSearchPaths))).get(0);
+    }
+
+    /**
+       fetches several genomes from the workspace concurrently (with
+       only the fields used in searches), returning them in the same
+       order as the refs
+    */
+    private static List<ObjectData> fetchGenomes(final WorkspaceClient wc,
+                                                 List<String> refs) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(batchFetchThreads, refs.size()));
+        try {
+            List<Future<ObjectData>> fetches = new ArrayList<Future<ObjectData>>();
+            for (final String ref : refs) {
+                fetches.add(pool.submit(new Callable<ObjectData>() {
+                        @Override
+                        public ObjectData call() throws Exception {
+                            return getGenomeSubset(wc, ref);
+                        }
+                    }));
+            }
+            List<ObjectData> rv = new ArrayList<ObjectData>();
+            for (Future<ObjectData> f : fetches)
+                rv.add(getResult(f));
+            return rv;
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+       Searches several genomes against several libraries, returning
+       one combined DomainAnnotation per genome.  Libraries are
+       searched concurrently, as in run(), and the genomes' proteins
+       are searched together against each library.  Each library's
+       hits go to a HitMerger as its search finishes, so the
+       annotations are the same whatever order the searches
+       finish in.  Notes for the report are added to notes, as in
+       searchSequences.
+    */
+    private static List<DomainAnnotation> searchLibraries(List<Genome> genomes,
+                                                          List<String> genomeRefs,
+                                                          String domainModelSetRef,
+                                                          List<DomainLibrary> libs,
+                                                          final String shockURL,
+                                                          final AuthToken token,
+                                                          final Collection<String> notes) throws Exception {
+        Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement = new HashMap<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>();
+        final List<String> seqs = new ArrayList<String>();
+        List<DomainAnnotation> rv = makeEmptyAnnotations(genomes,
+                                                         genomeRefs,
+                                                         domainModelSetRef,
+                                                         null,
+                                                         posToElement,
+                                                         seqs);
+        final HitMerger merger = new HitMerger(libs.size());
+        final int concurrentLibraries = Math.max(1, Math.min(maxConcurrentLibraries, libs.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(concurrentLibraries);
+        try {
+            CompletionService<HitStore> searches = new ExecutorCompletionService<HitStore>(pool);
+            for (int l=0; l<libs.size(); l++) {
+                final DomainLibrary dl = libs.get(l);
+                final int slot = l;
+                searches.submit(new Callable<HitStore>() {
+                        @Override
+                        public HitStore call() throws Exception {
+                            HitStore hits = new HitStore();
+                            searchSequences(seqs, dl, shockURL, token, concurrentLibraries, hits, notes);
+                            merger.add(slot, hits);
+                            return hits;
+                        }
+                    });
+            }
+            for (int i=0; i<libs.size(); i++)
+                getResult(searches.take());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        merger.merge().addTo(posToElement);
+        return rv;
+    }
+
+    /**
+       checks whether a genome has any proteins that can be annotated
+    */
+    private static boolean hasProteins(Genome genome) {
+        for (Feature feat : genome.getFeatures()) {
+            String seq = feat.getProteinTranslation();
+            if ((feat.getId() != null) &&
+                (feat.getLocation().size() > 0) &&
+                (feat.getLocation().get(0).getE1() != null) &&
+                (seq != null) && !seq.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+       waits for a background task, rethrowing the original exception
+       if it failed
+    */
+    private static <T> T getResult(Future<T> f) throws Exception {
+        try {
+            return f.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception)cause;
+            throw e;
+        }
+    }
+
+    /**
+       Searches a library for an incremental re-annotation.  Changed
+       features are searched against the whole library.  Unchanged
+       features are only searched against models that are new or
+       changed since the prior library (priorLibRef, which may be
+       null if there wasn't one), using a temporary sub-library; hits
+       to unchanged models are copied from the prior annotation, and
+       hits to models that were removed are dropped.  If no models can
+       be reused, all features are searched against the whole library.
+       Notes for the report are added to notes.
+    */
+    private static DomainAnnotation runDeltaSearch(WorkspaceClient wc,
+                                                   Genome genome,
+                                                   String genomeRef,
+                                                   String domainModelSetRef,
+                                                   String libRef,
+                                                   DomainLibrary dl,
+                                                   String priorLibRef,
+                                                   DomainAnnotation prior,
+                                                   Set<String> unchangedFeatures,
+                                                   Set<String> changedFeatures,
+                                                   String shockURL,
+                                                   AuthToken token,
+                                                   int concurrentLibraries,
+                                                   List<String> notes) throws Exception {
+        // find models with hits that can be copied
+        Set<String> keptModels = new HashSet<String>();
+        DomainLibrary priorLib = null;
+        if (libRef.equals(priorLibRef))
+            keptModels.addAll(dl.getDomains().keySet());
+        else if (priorLibRef != null) {
+            priorLib = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(priorLibRef))).get(0).getData().asClassInstance(DomainLibrary.class);
+            keptModels.addAll(findUnchangedModels(priorLib, dl));
+        }
+        if (keptModels.isEmpty()) {
+            notes.add("Searching all features against library "+libRef+".");
+            return runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token, concurrentLibraries, null, notes);
+        }
+
+        DomainAnnotation rv = runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token, concurrentLibraries, unchangedFeatures, notes);
+        Set<String> newModels = new HashSet<String>(dl.getDomains().keySet());
+        newModels.removeAll(keptModels);
+        if (!newModels.isEmpty() && !unchangedFeatures.isEmpty()) {
+            notes.add("Searching unchanged features against "+newModels.size()+" new or changed models in library "+libRef+".");
+            prepareLibraryFiles(dl,shockURL,token);
+            DomainLibrary subLib = makeSubLibrary(dl, newModels, dl.getVersion()+" delta from "+priorLib.getVersion());
+            try {
+                combineData(runDomainSearch(genome, genomeRef, domainModelSetRef, subLib, shockURL, token, concurrentLibraries, changedFeatures, notes), rv);
+            }
+            finally {
+                deleteSubLibrary(subLib);
+            }
+        }
+        copyHits(prior, rv, unchangedFeatures, keptModels);
+        rescaleDeltaEvalues(rv,
+                            prior,
+                            unchangedFeatures,
+                            keptModels,
+                            (priorLib==null ? dl : priorLib).getDomains().keySet());
+        return rv;
+    }
+
+    /**
+       Rescales the per-domain E-values of the unchanged features in
+       an incremental re-annotation to what a search of the whole
+       library would report.  As in parseHmmsearchDomTable, hmmscan's
+       i-Evalue is the domain's P-value times the number of models
+       hitting the protein.  Each unchanged feature's hits to new or
+       changed models (from the sub-library search) only counted
+       those models, and its hits to kept models (copied from the
+       prior annotation) counted the models in the prior library
+       (priorModels) that hit it; both are rescaled to count the kept
+       and new models hitting it now.  Copied hits are replaced, so
+       the prior annotation isn't changed.
+    */
+    public static void rescaleDeltaEvalues(DomainAnnotation annotation,
+                                           DomainAnnotation prior,
+                                           Set<String> unchangedFeatures,
+                                           Set<String> keptModels,
+                                           Set<String> priorModels) {
+        Map<String,Integer> priorCounts = new HashMap<String,Integer>();
+        for (List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> elements : prior.getData().values()) {
+            for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element : elements) {
+                int count = 0;
+                for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : element.getE5().entrySet())
+                    if (priorModels.contains(domain.getKey()) && !domain.getValue().isEmpty())
+                        count++;
+                if (count > 0)
+                    priorCounts.put(element.getE1(), count);
+            }
+        }
+        for (List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> elements : annotation.getData().values()) {
+            for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element : elements) {
+                if (!unchangedFeatures.contains(element.getE1()))
+                    continue;
+                Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = element.getE5();
+                int keptCount = 0;
+                int newCount = 0;
+                for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : domains.entrySet()) {
+                    if (domain.getValue().isEmpty())
+                        continue;
+                    if (keptModels.contains(domain.getKey()))
+                        keptCount++;
+                    else
+                        newCount++;
+                }
+                Integer priorCount = priorCounts.get(element.getE1());
+                for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : domains.entrySet()) {
+                    if (domain.getValue().isEmpty())
+                        continue;
+                    if (!keptModels.contains(domain.getKey())) {
+                        double scale = (double)(keptCount + newCount) / (double)newCount;
+                        for (Tuple5<Long, Long, Double, Double, Double> place : domain.getValue())
+                            place.setE3(place.getE3().doubleValue() * scale);
+                    }
+                    else if (priorCount != null) {
+                        double scale = (double)(keptCount + newCount) / (double)priorCount.intValue();
+                        List<Tuple5<Long, Long, Double, Double, Double>> places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
+                        for (Tuple5<Long, Long, Double, Double, Double> place : domain.getValue())
+                            places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                                       .withE1(place.getE1())
+                                       .withE2(place.getE2())
+                                       .withE3(place.getE3().doubleValue() * scale)
+                                       .withE4(place.getE4())
+                                       .withE5(place.getE5()));
+                        domain.setValue(places);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+       Returns the accessions of models in a library that are the same
+       as in a prior version of the library, based on their checksums.
+       Only HMM libraries are compared, because RPS-BLAST E-values
+       depend on the size of the whole database, so they change if any
+       model in the library changes.
+    */
+    public static Set<String> findUnchangedModels(DomainLibrary priorLib,
+                                                  DomainLibrary dl) {
+        Set<String> rv = new HashSet<String>();
+        if (!dl.getProgram().equals("hmmscan-3.1b1") ||
+            !priorLib.getProgram().equals(dl.getProgram()))
+            return rv;
+        Map<String,DomainModel> priorDomains = priorLib.getDomains();
+        Map<String,DomainModel> domains = dl.getDomains();
+        for (String accession : domains.keySet()) {
+            DomainModel priorModel = priorDomains.get(accession);
+            if (priorModel == null)
+                continue;
+            String checksum = domains.get(accession).getChecksum();
+            if ((checksum != null) && checksum.equals(priorModel.getChecksum()))
+                rv.add(accession);
+        }
+        return rv;
+    }
+
+    /**
+       Makes a temporary HMM library containing some of the models
+       in another HMM library, which must already be in the domains
+       directory.  The models are copied from the library and pressed
+       for hmmscan.  The version should be different from the
+       original library's version, so the hit cache keeps their
+       results separate.  Delete it with deleteSubLibrary().
+    */
+    public static DomainLibrary makeSubLibrary(DomainLibrary dl,
+                                               Set<String> accessions,
+                                               String version) throws Exception {
+        File dir = getDomainsDir();
+        File libFile = new File(dir, dl.getLibraryFiles().get(0).getFileName());
+        File subFile = File.createTempFile(dl.getId()+"-", ".hmm", dir);
+        BufferedReader infile = new BufferedReader(new FileReader(libFile));
+        PrintWriter outfile = new PrintWriter(new BufferedWriter(new FileWriter(subFile)));
+        try {
+            List<String> model = new ArrayList<String>();
+            String acc = null;
+            String buffer;
+            while ((buffer = infile.readLine()) != null) {
+                model.add(buffer);
+                if (buffer.startsWith("ACC "))
+                    acc = buffer.substring(6).trim();
+                else if (buffer.startsWith("//")) {
+                    if (accessions.contains(acc))
+                        for (String line : model)
+                            outfile.println(line);
+                    model.clear();
+                    acc = null;
+                }
+            }
+        }
+        finally {
+            infile.close();
+            outfile.close();
+        }
+
+        Map<String,DomainModel> domains = new HashMap<String,DomainModel>();
+        for (String accession : accessions)
+            domains.put(accession, dl.getDomains().get(accession));
+        DomainLibrary rv = new DomainLibrary()
+            .withId(dl.getId())
+            .withSource(dl.getSource())
+            .withSourceUrl(dl.getSourceUrl())
+            .withVersion(version)
+            .withReleaseDate(dl.getReleaseDate())
+            .withProgram(dl.getProgram())
+            .withDomainPrefix(dl.getDomainPrefix())
+            .withDbxrefPrefix(dl.getDbxrefPrefix())
+            .withLibraryFiles(Arrays.asList(new Handle().withFileName(subFile.getName())))
+            .withDomains(domains);
+
+        // hmmpress writes its own output files
+        try {
+            runHmmerProcess("HMMPRESS",
+                            Arrays.asList(getHmmpressBin().getAbsolutePath(),
+                                          subFile.getAbsolutePath()),
+                            subFile,
+                            true);
+        }
+        catch (Exception e) {
+            deleteSubLibrary(rv);
+            throw e;
+        }
+        return rv;
+    }
+
+    /**
+       deletes a library made by makeSubLibrary, and its pressed files
+    */
+    public static void deleteSubLibrary(DomainLibrary dl) throws Exception {
+        File subFile = new File(getDomainsDir(), dl.getLibraryFiles().get(0).getFileName());
+        for (String suffix : new String[] { "", ".h3f", ".h3i", ".h3m", ".h3p" })
+            new File(subFile.getPath()+suffix).delete();
+    }
+
+    /**
+       Runs a domain search on a single genome, returning annotations.
+       This works on a single library, but needs metadata (references
+       to Genome and DomainModelSet) to populate the annotation object.
+    */
+    public static DomainAnnotation runDomainSearch(Genome genome,
+                                                   String genomeRef,
+                                                   String domainModelSetRef,
+                                                   DomainLibrary dl,
+                                                   String shockURL,
+                                                   AuthToken token) throws Exception {
+        return runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token, 1);
+    }
+
+    /**
+       Runs a domain search on a single genome, as above.
+       concurrentLibraries is the number of libraries being searched
+       at the same time, which is used to share the available cores
+       among all the search processes.
+    */
+    public static DomainAnnotation runDomainSearch(Genome genome,
+                                                   String genomeRef,
+                                                   String domainModelSetRef,
+                                                   DomainLibrary dl,
+                                                   String shockURL,
+                                                   AuthToken token,
+                                                   int concurrentLibraries) throws Exception {
+        return runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token, concurrentLibraries, null);
+    }
+
+    /**
+       Runs a domain search on a single genome, as above, but doesn't
+       search the features with ids in skipFeatureIds (which may be
+       null).  Skipped features are still indexed in the results, but
+       have no hits; their hits can be filled in with copyHits().
+    */
+    public static DomainAnnotation runDomainSearch(Genome genome,
+                                                   String genomeRef,
+                                                   String domainModelSetRef,
+                                                   DomainLibrary dl,
+                                                   String shockURL,
+                                                   AuthToken token,
+                                                   int concurrentLibraries,
+                                                   Set<String> skipFeatureIds) throws Exception {
+        return runDomainSearch(genome, genomeRef, domainModelSetRef, dl, shockURL, token, concurrentLibraries, skipFeatureIds, null);
+    }
+
+    /**
+       Runs a domain search on a single genome, as above; notes for
+       the report are added to notes, as in searchSequences.
+    */
+    public static DomainAnnotation runDomainSearch(Genome genome,
+                                                   String genomeRef,
+                                                   String domainModelSetRef,
+                                                   DomainLibrary dl,
+                                                   String shockURL,
+                                                   AuthToken token,
+                                                   int concurrentLibraries,
+                                                   Set<String> skipFeatureIds,
+                                                   Collection<String> notes) throws Exception {
+        return runDomainSearch(Arrays.asList(genome),
+                               Arrays.asList(genomeRef),
+                               domainModelSetRef,
+                               dl,
+                               shockURL,
+                               token,
+                               concurrentLibraries,
+                               Arrays.asList(skipFeatureIds),
+                               notes).get(0);
+    }
+
+    /**
+       Runs a domain search on several genomes at once, returning one
+       DomainAnnotation per genome, in the same order.  Proteins from
+       all the genomes are packed into the same search shards, so
+       each search process (and library load) is shared by all the
+       genomes, and proteins found in more than one genome are only
+       searched once.  skipFeatureIds is either null, or has one set
+       of feature ids (or null) per genome, to skip as above.  Notes
+       for the report are added to notes (which may be null), as in
+       searchSequences.
+    */
+    public static List<DomainAnnotation> runDomainSearch(List<Genome> genomes,
+                                                         List<String> genomeRefs,
+                                                         String domainModelSetRef,
+                                                         DomainLibrary dl,
+                                                         String shockURL,
+                                                         AuthToken token,
+                                                         int concurrentLibraries,
+                                                         List<Set<String>> skipFeatureIds,
+                                                         Collection<String> notes) throws Exception {
+        Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement = new HashMap<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>();
+        List<String> seqs = new ArrayList<String>();
+        List<DomainAnnotation> rv = makeEmptyAnnotations(genomes,
+                                                         genomeRefs,
+                                                         domainModelSetRef,
+                                                         skipFeatureIds,
+                                                         posToElement,
+                                                         seqs);
+        HitStore hits = new HitStore();
+        searchSequences(seqs, dl, shockURL, token, concurrentLibraries, hits, notes);
+        hits.addTo(posToElement);
+        return rv;
+    }
+
+    /**
+       Makes an empty DomainAnnotation for each of several genomes,
+       for runDomainSearch.  Features are numbered consecutively
+       across all the genomes; each protein's number maps to its
+       element (in the annotation of its genome) in posToElement,
+       and each protein to search is added to seqs at its number.
+       Features that can't be searched, or are in skipFeatureIds,
+       are added to seqs as null.
+    */
+    private static List<DomainAnnotation> makeEmptyAnnotations(List<Genome> genomes,
+                                                               List<String> genomeRefs,
+                                                               String domainModelSetRef,
+                                                               List<Set<String>> skipFeatureIds,
+                                                               Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement,
+                                                               List<String> seqs) throws Exception {
+        List<DomainAnnotation> rv = new ArrayList<DomainAnnotation>();
+        for (int genomeIndex = 0; genomeIndex < genomes.size(); genomeIndex++) {
+            Genome genome = genomes.get(genomeIndex);
+            rv.add(makeEmptyAnnotation(genome,
+                                       genomeRefs.get(genomeIndex),
+                                       domainModelSetRef,
+                                       seqs.size(),
+                                       posToElement));
+            Set<String> skip = (skipFeatureIds==null ? null : skipFeatureIds.get(genomeIndex));
+            for (Feature feat : genome.getFeatures()) {
+                // skipped features aren't searched; their hits
+                // come from a prior annotation
+                if (posToElement.containsKey(seqs.size()) &&
+                    ((skip == null) || !skip.contains(feat.getId())))
+                    seqs.add(feat.getProteinTranslation());
+                else
+                    seqs.add(null);
+            }
+        }
+        return rv;
+    }
+
+    /**
+       Searches a library for domains in one genome, returning the
+       hits in a HitStore, by the position of each feature in the
+       genome.  posToElement is from makeEmptyAnnotation (with
+       firstPos 0); only features in it are searched.  Notes for the
+       report are added to notes, as in searchSequences.
+    */
+    public static HitStore searchGenome(Genome genome,
+                                        Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement,
+                                        DomainLibrary dl,
+                                        String shockURL,
+                                        AuthToken token,
+                                        int concurrentLibraries,
+                                        Collection<String> notes) throws Exception {
+        List<String> seqs = new ArrayList<String>();
+        for (Feature feat : genome.getFeatures()) {
+            if (posToElement.containsKey(seqs.size()))
+                seqs.add(feat.getProteinTranslation());
+            else
+                seqs.add(null);
+        }
+        HitStore hits = new HitStore();
+        searchSequences(seqs, dl, shockURL, token, concurrentLibraries, hits, notes);
+        return hits;
+    }
+
+    /**
+       Searches a library for domains in a list of protein sequences,
+       passing each hit to a callback, along with the position of the
+       protein in the list.  Null or empty sequences are skipped.
+       Identical sequences are only searched once, and sequences in
+       the hit cache aren't searched at all; the callback still gets
+       their hits, under every position where they occur.  The
+       callback is only called by one thread at a time.
+    */
+    public static void searchSequences(List<String> seqs,
+                                       DomainLibrary dl,
+                                       String shockURL,
+                                       AuthToken token,
+                                       int concurrentLibraries,
+                                       DomainHitCallback hitCallback) throws Exception {
+        searchSequences(seqs, dl, shockURL, token, concurrentLibraries, hitCallback, null);
+    }
+
+    /**
+       Searches a library for domains in a list of protein sequences,
+       as above.  If the sequences are scored in this process (by
+       HmmEngine or PssmEngine) rather than by hmmscan or rpsblast,
+       a note saying so is added to notes (if not null), for the
+       report.
+    */
+    public static void searchSequences(List<String> seqs,
+                                       DomainLibrary dl,
+                                       String shockURL,
+                                       AuthToken token,
+                                       int concurrentLibraries,
+                                       final DomainHitCallback hitCallback,
+                                       Collection<String> notes) throws Exception {
+        final File dbFile = new File(getDomainsDir().getPath()+"/"+dl.getLibraryFiles().get(0).getFileName());
+        File fastaFile = File.createTempFile("proteome", ".fasta", tempDir);
+        List<File> tempFiles = new ArrayList<File>();
+
+        // make sure we have local copies of all library files
+        prepareLibraryFiles(dl,shockURL,token);
+
+        // the length of each model, to compute coverage
+        final Map<String,Long> modelNameToLength = getModelNameToLength(dl);
+
+        String libProgram = dl.getProgram();
+        if (!libProgram.equals("rpsblast-2.2.30") &&
+            !libProgram.equals("hmmscan-3.1b1"))
+            throw new Exception("unsupported domain search program "+libProgram);
+        long totalResidues = 0;
+        int maxLength = 0;
+        for (String seq : seqs) {
+            if (seq != null) {
+                totalResidues += seq.length();
+                maxLength = Math.max(maxLength, seq.length());
+            }
+        }
+
+        // small jobs may be scored in this process, if the longest
+        // protein and model fit in HmmEngine's traceback matrix
+        boolean useHmmEngine = false;
+        boolean usePssmEngine = false;
+        if (hmmerEngine.equals("java") && libProgram.equals("hmmscan-3.1b1")) {
+            long maxModelLength = 0;
+            for (Long length : modelNameToLength.values())
+                maxModelLength = Math.max(maxModelLength, length.longValue());
+            useHmmEngine = ((totalResidues <= javaHmmerMaxResidues) &&
+                            ((maxLength+1L) * (maxModelLength+1L) <= javaHmmerMaxCells));
+        }
+        else if (pssmEngine.equals("java") && libProgram.equals("rpsblast-2.2.30"))
+            usePssmEngine = (totalResidues <= javaPssmMaxResidues);
+
+        // the program is chosen before looking in the hit cache,
+        // so hits are cached under the program that found them;
+        // hmmsearch's corrected E-values are close to, but not the
+        // same as, hmmscan's
+        if (useHmmEngine)
+            libProgram = "hmmscan-java";
+        else if (libProgram.equals("hmmscan-3.1b1"))
+            libProgram = chooseHmmerProgram(totalResidues, modelNameToLength.size());
+        final String program = libProgram;
+        String searchParams = getSearchParams(usePssmEngine ? "rpsblast-java" : program);
+        if ((useHmmEngine || usePssmEngine) && prefilter)
+            searchParams += " prefilter";
+        if ((useHmmEngine || usePssmEngine) && (notes != null)) {
+            String note = "Library "+dl.getSource()+" "+dl.getVersion()+" was searched in this process with "+(useHmmEngine ? "HmmEngine, not hmmscan" : "PssmEngine, not rpsblast")+"; scores may differ slightly from the external program's.";
+            synchronized (notes) {
+                if (!notes.contains(note))
+                    notes.add(note);
+            }
+        }
+
+        try {
+            FastaWriter fw = new FastaWriter(fastaFile);
+            // identical proteins (paralogs, transposases, etc) are
+            // only searched once, under the position of the first
+            // copy; hits are copied to the positions of the others.
+            // Case is ignored, as in the hit cache's sequence keys
+            Map<String, Integer> seqToFirstPos = new HashMap<String, Integer>();
+            final Map<Integer, List<Integer>> firstPosToCopies = new HashMap<Integer, List<Integer>>();
+            // proteins already in the hit cache aren't searched;
+            // the others are saved in the cache after searching
+            String libraryKey = null;
+            if (hitCache != null)
+                libraryKey = HitCache.libraryKey(dl, searchParams);
+            Map<Integer, List<DomainHit>> cachedHits = new HashMap<Integer, List<DomainHit>>();
+            final Map<Integer, String> missKeys = new HashMap<Integer, String>();
+            final Map<Integer, List<DomainHit>> searchedHits = new HashMap<Integer, List<DomainHit>>();
+            Map<Integer, String> engineSeqs = new TreeMap<Integer, String>();
+            int searchCount = 0;
+            // write out each unique protein sequentially into a FASTA
+            // file, keeping track of its (first) position
+            try {
+                for (int pos = 0; pos < seqs.size(); pos++) {
+                    String seq = seqs.get(pos);
+                    if ((seq == null) || seq.isEmpty())
+                        continue;
+                    String upperSeq = seq.toUpperCase();
+                    Integer firstPos = seqToFirstPos.get(upperSeq);
+                    if (firstPos == null) {
+                        seqToFirstPos.put(upperSeq, pos);
+                        List<DomainHit> hits = null;
+                        if (hitCache != null) {
+                            String seqKey = HitCache.sequenceKey(seq);
+                            hits = hitCache.get(libraryKey, seqKey);
+                            if (hits == null)
+                                missKeys.put(pos, seqKey);
+                        }
+                        if (hits != null)
+                            cachedHits.put(pos, hits);
+                        else {
+                            if (useHmmEngine || usePssmEngine)
+                                engineSeqs.put(pos, seq);
+                            else
+                                fw.write("" + pos, seq);
+                            searchCount++;
+                        }
+                    }
+                    else {
+                        List<Integer> copies = firstPosToCopies.get(firstPos);
+                        if (copies == null) {
+                            copies = new ArrayList<Integer>();
+                            firstPosToCopies.put(firstPos, copies);
+                        }
+                        copies.add(pos);
+                    }
+                }
+            }
+            finally {
+                try { fw.close(); } catch (Exception ignore) {}
+            }
+            seqToFirstPos = null;
+
+            // run the appropriate annotation program, on one
+            // or more shards of the proteome
+            final DomainHitCallback callback = new DomainHitCallback() {
+                    @Override
+                    public synchronized void next(int featurePos,
+                                                  String accession,
+                                                  long start,
+                                                  long stop,
+                                                  double evalue,
+                                                  double bitscore,
+                                                  double coverage) throws Exception {
+                        if (missKeys.containsKey(featurePos)) {
+                            List<DomainHit> hits = searchedHits.get(featurePos);
+                            if (hits == null) {
+                                hits = new ArrayList<DomainHit>();
+                                searchedHits.put(featurePos, hits);
+                            }
+                            hits.add(new DomainHit(accession, start, stop, evalue, bitscore, coverage));
+                        }
+                        hitCallback.next(featurePos, accession, start, stop, evalue, bitscore, coverage);
+                        List<Integer> copies = firstPosToCopies.get(featurePos);
+                        if (copies != null)
+                            for (Integer copyPos : copies)
+                                hitCallback.next(copyPos, accession, start, stop, evalue, bitscore, coverage);
+                    }
+
+                };
+
+            for (Integer pos : cachedHits.keySet())
+                for (DomainHit hit : cachedHits.get(pos))
+                    callback.next(pos,
+                                  hit.getAccession(),
+                                  hit.getStart(),
+                                  hit.getStop(),
+                                  hit.getEvalue(),
+                                  hit.getBitscore(),
+                                  hit.getCoverage());
+
+            if ((searchCount > 0) && useHmmEngine) {
+                int threads = cpuBudget.acquire(concurrentLibraries);
+                try {
+                    HmmEngine.get(dbFile).search(engineSeqs,
+                                                 modelNameToLength,
+                                                 (prefilter ? KmerIndex.get(dbFile) : null),
+                                                 javaHmmerMaxCells,
+                                                 threads,
+                                                 callback);
+                }
+                finally {
+                    cpuBudget.release(threads);
+                }
+            }
+            else if ((searchCount > 0) && usePssmEngine) {
+                int threads = cpuBudget.acquire(concurrentLibraries);
+                try {
+                    PssmEngine.get(dbFile).search(engineSeqs,
+                                                  Double.parseDouble(MAX_BLAST_EVALUE),
+                                                  (prefilter ? KmerIndex.get(dbFile) : null),
+                                                  threads,
+                                                  makeRpsBlastCallback(modelNameToLength, callback));
+                }
+                finally {
+                    cpuBudget.release(threads);
+                }
+            }
+            else if (searchCount > 0) {
+                List<File> queryFiles = new ArrayList<File>();
+                if (searchShards > 1) {
+                    queryFiles.addAll(splitFasta(fastaFile, searchShards));
+                    tempFiles.addAll(queryFiles);
+                }
+                else
+                    queryFiles.add(fastaFile);
+                runSearches(program, dbFile, queryFiles, concurrentLibraries, modelNameToLength, callback, tempFiles);
+            }
+
+            // save newly searched proteins in the cache
+            if (hitCache != null) {
+                for (Integer pos : missKeys.keySet()) {
+                    List<DomainHit> hits = searchedHits.get(pos);
+                    if (hits == null)
+                        hits = new ArrayList<DomainHit>();
+                    hitCache.put(libraryKey, missKeys.get(pos), hits);
+                }
+            }
+        }
+        finally {
+            try { fastaFile.delete(); } catch (Exception ignore) {}
+            for (File f : tempFiles)
+                try { f.delete(); } catch (Exception ignore) {}
+        }
+    }
+
+    /**
+       Makes the annotation element for a feature, with no hits yet.
+       Returns null if the feature has no id or location.
+    */
+    public static Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> makeElement(Feature feat) {
+        if (feat.getLocation().size() < 1)
+            return null;
+        Tuple4<String, Long, String, Long> loc = feat.getLocation().get(0);
+        if ((loc.getE1()==null) || (feat.getId()==null))
+            return null;
+        String seq = feat.getProteinTranslation();
+        long start = loc.getE3().equals("-") ? (loc.getE2() - loc.getE4() + 1) : loc.getE2();
+        // fake the stop site based on protein length
+        long stop;
+        if (seq != null)
+            stop = start - 1 + ((seq.length()+1) * 3);
+        else {
+            // correct calculation for end of 1st exon:
+            stop = loc.getE3().equals("-") ? loc.getE2() : (loc.getE2() + loc.getE4() - 1);
+        }
+        long dir = loc.getE3().equals("-") ? -1 : +1;
+        return new Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>()
+            .withE1(feat.getId())
+            .withE2(start)
+            .withE3(stop)
+            .withE4(dir)
+            .withE5(new TreeMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>());
+    }
+
+    /**
+       Makes a DomainAnnotation for a genome with no hits yet, with
+       an element for each feature, and contig-based indices.  Each
+       feature with a protein sequence is added to posToElement,
+       numbered from firstPos in the order of the genome's features.
+       Throws an exception if the genome has no usable proteins.
+    */
+    public static DomainAnnotation makeEmptyAnnotation(Genome genome,
+                                                        String genomeRef,
+                                                        String domainModelSetRef,
+                                                        int firstPos,
+                                                        Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement) {
+        String genomeName = genome.getScientificName();
+        Map<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> contig2prots =
+            new TreeMap<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>>();
+        int protCount = 0;
+        Map<String, Tuple2<String, Long>> featIdToContigFeatIndex = new TreeMap<String, Tuple2<String, Long>>();
+        // to work around genomes with missing contigs:
+        HashSet<String> realContigs = new HashSet<String>();
+        List<Feature> features = genome.getFeatures();
+        int pos = firstPos - 1;
+        for (Feature feat : features) {
+            pos++;
+            Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element = makeElement(feat);
+            if (element == null)
+                continue;
+            String seq = feat.getProteinTranslation();
+            String contigId = feat.getLocation().get(0).getE1();
+            String featId = feat.getId();
+            List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> prots = contig2prots.get(contigId);
+            if (prots == null) {
+                prots = new ArrayList<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>();
+                contig2prots.put(contigId, prots);
+            }
+            prots.add(element);
+            if (seq != null && !seq.isEmpty()) {
+                posToElement.put(pos, element);
+                featIdToContigFeatIndex.put(featId, new Tuple2<String, Long>().withE1(contigId));
+                protCount++;
+                realContigs.add(contigId);
+            }
+        }
+        if (protCount == 0)
+            throw new IllegalStateException("There are no protein translations in genome " + genomeName + " (" + genomeRef + ")");
+
+        // make contig-based indices
+        HashMap<String,Long> contigLengths = new HashMap<String,Long>();
+
+        // first, get the reported contigs from genome object
+        List<String> genomeContigs = genome.getContigIds();
+        List<Long> genomeContigLengths = genome.getContigLengths();
+        int nContigs = 0;
+        if (genomeContigs != null)
+            nContigs = genomeContigs.size();
+        for (int contigPos = 0; contigPos < nContigs; contigPos++) {
+            String contigId = genomeContigs.get(contigPos);
+            if (!contig2prots.containsKey(contigId))
+                continue;
+            long contigLength = 1;
+            if ((genomeContigLengths != null) &&
+                (genomeContigLengths.size() > contigPos))
+                contigLength = genomeContigLengths.get(contigPos).longValue();
+            contigLengths.put(contigId, new Long(contigLength));
+        }
+        // next, add any missing contigs as length 1
+        for (String contigId : realContigs) {
+            if (contigLengths.get(contigId) == null)
+                contigLengths.put(contigId, new Long(1));
+        }
+
+        // map contigs to "size" (both length and # of proteins)
+        Map<String, Tuple2<Long, Long>> contigSizes = new TreeMap<String, Tuple2<Long, Long>>();
+        for (String contigId : contigLengths.keySet()) {
+            List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> prots = contig2prots.get(contigId);
+            Collections.sort(prots, new Comparator<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>() {
+                    @Override
+                    public int compare(Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> o1,
+                                       Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> o2) {
+                        return Long.compare(o1.getE2(), o2.getE2());
+                    }
+                });
+            long contigLength = contigLengths.get(contigId).longValue();
+            contigSizes.put(contigId, new Tuple2<Long, Long>().withE1(contigLength).withE2((long)prots.size()));
+            for (int i=0; i<prots.size(); i++) {
+                String featId = prots.get(i).getE1();
+                Tuple2<String, Long> contigFeatIndex = featIdToContigFeatIndex.get(featId);
+                if (contigFeatIndex != null)
+                    contigFeatIndex.setE2((long)i);
+            }
+        }
+
+        return new DomainAnnotation()
+            .withGenomeRef(genomeRef)
+            .withUsedDmsRef(domainModelSetRef)
+            .withData(contig2prots)
+            .withContigToSizeAndFeatureCount(contigSizes)
+            .withFeatureToContigAndIndex(featIdToContigFeatIndex);
+    }
+
+    /**
+       Searches a library with one or more query files.  Each file
+       is searched in the background; output from each one is parsed
+       as soon as it is finished (or while it is running, if
+       streaming), and output files are added to tempFiles.  Every
+       protein is in only one query file, so the order of its hits
+       is the same as in a search of a single file.
+    */
+    private static void runSearches(final String program,
+                                    final File dbFile,
+                                    List<File> queryFiles,
+                                    int concurrentLibraries,
+                                    final Map<String,Long> modelNameToLength,
+                                    final DomainHitCallback callback,
+                                    List<File> tempFiles) throws Exception {
+        final int expectedJobs = concurrentLibraries * queryFiles.size();
+        ExecutorService pool = Executors.newFixedThreadPool(queryFiles.size());
+        try {
+            CompletionService<File> searches = new ExecutorCompletionService<File>(pool);
+            for (final File queryFile : queryFiles) {
+                searches.submit(new Callable<File>() {
+                        @Override
+                        public File call() throws Exception {
+                            int threads = cpuBudget.acquire(expectedJobs);
+                            try {
+                                if (streamSearchOutput) {
+                                    runSearchStreaming(program, dbFile, queryFile, threads, modelNameToLength, callback);
+                                    return null;
+                                }
+                                return runSearch(program, dbFile, queryFile, threads);
+                            }
+                            finally {
+                                cpuBudget.release(threads);
+                            }
+                        }
+                    });
+            }
+            for (int i=0; i<queryFiles.size(); i++) {
+                File outFile = getResult(searches.take());
+                if (outFile != null) {
+                    tempFiles.add(outFile);
+                    parseSearchOutput(program, outFile, modelNameToLength, callback);
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+       Parses output from RPS-BLAST or HMMER (depending on the program
+       used by the library), passing each hit to a callback
+    */
+    public static void parseSearchOutput(String program,
+                                         File outFile,
+                                         Map<String,Long> modelNameToLength,
+                                         DomainHitCallback callback) throws Exception {
+        if ((parsePool != null) &&
+            ParallelOutputParser.canParse(program, hmmerDomTable) &&
+            outFile.isFile() &&
+            (outFile.length() >= parallelParseMinBytes))
+            ParallelOutputParser.parse(program,
+                                       outFile,
+                                       modelNameToLength,
+                                       callback,
+                                       parsePool,
+                                       tempDir);
+        else if (program.equals("rpsblast-2.2.30"))
+            parseRpsBlastOutput(outFile, modelNameToLength, callback);
+        else if (!program.equals("hmmsearch-3.1b1") && !hmmerDomTable && outFile.isFile())
+            MappedHmmerParser.parse(outFile, modelNameToLength, callback);
+        else {
+            // named pipes (from runSearchStreaming) can't be mapped,
+            // so are read as a stream
+            BufferedReader infile = new BufferedReader(new FileReader(outFile));
+            try {
+                if (program.equals("hmmsearch-3.1b1"))
+                    parseHmmsearchDomTable(infile, modelNameToLength, callback);
+                else if (hmmerDomTable)
+                    parseHmmerDomTable(infile, modelNameToLength, callback);
+                else
+                    parseHmmerOutput(infile, modelNameToLength, callback);
+            }
+            finally {
+                infile.close();
+            }
+        }
+    }
+
+    /**
+       Parses tabular RPS-BLAST output, passing each hit to a callback
+    */
+    public static void parseRpsBlastOutput(File outFile,
+                                           Map<String,Long> modelNameToLength,
+                                           DomainHitCallback callback) throws Exception {
+        RpsBlastParser.processRpsOutput(outFile, makeRpsBlastCallback(modelNameToLength, callback));
+    }
+
+    /**
+       Converts each alignment from RPS-BLAST (or PssmEngine) to a
+       domain hit, and passes it to a callback
+    */
+    public static RpsBlastParser.RpsBlastCallback makeRpsBlastCallback(final Map<String,Long> modelNameToLength,
+                                                                       final DomainHitCallback callback) {
+        return new RpsBlastParser.RpsBlastCallback() {
+                @Override
+                public void next(String query,
+                                 String subject,
+                                 int qstart,
+                                 String qseq,
+                                 int sstart,
+                                 String sseq,
+                                 String evalue,
+                                 double bitscore,
+                                 double ident) throws Exception {
+                    Long modelLength = modelNameToLength.get(subject);
+                    if (modelLength == null)
+                        throw new IllegalStateException("Unexpected subject name in prs blast result: " + subject);
+                    int featurePos = Integer.parseInt(query);
+                    long coverageAndLength = getCoverageAndLength((int)(modelLength.longValue()), qseq, sstart - 1, sseq);
+                    int coverage = (int)(coverageAndLength >>> 32);
+                    int qlen = (int)coverageAndLength;
+                    callback.next(featurePos,
+                                  subject,
+                                  (long)qstart,
+                                  (long)qstart + qlen - 1,
+                                  Double.parseDouble(evalue),
+                                  bitscore,
+                                  coverage / 100.0);
+                }
+            };
+    }
+
+    /**
+       Computes the coverage and query length of an RPS-BLAST hit in
+       one pass, without making any Strings.  Returns the percent of
+       the model covered by the alignment in the high 32 bits (100 -
+       AlignUtil.getGapPercent of the query residues aligned to the
+       model, from AlignUtil.removeGapsFromSubject), and the length
+       of the query without gaps (AlignUtil.removeGaps(qseq).length())
+       in the low 32 bits.  sstart is 0-offset.
+    */
+    public static long getCoverageAndLength(int modelLength,
+                                            String qseq,
+                                            int sstart,
+                                            String sseq) {
+        int aligned = 0;
+        int gaps = sstart;
+        int qlen = 0;
+        for (int i=0; i<qseq.length(); i++) {
+            char q = qseq.charAt(i);
+            if (q != '-')
+                qlen++;
+            if (sseq.charAt(i) != '-') {
+                aligned++;
+                if (q == '-')
+                    gaps++;
+            }
+        }
+        // the model is padded with gaps out to its full length
+        int length = sstart + aligned;
+        if (length < modelLength) {
+            gaps += modelLength - length;
+            length = modelLength;
+        }
+        int coverage = 100 - (gaps * 100 / length);
+        return ((long)coverage << 32) | qlen;
+    }
+
+    /**
+       Parses the text report from hmmscan, passing each hit to a callback
+    */
+    public static void parseHmmerOutput(BufferedReader infile,
+                                        Map<String,Long> modelNameToLength,
+                                        DomainHitCallback callback) throws Exception {
+        int featurePos = -1;
+        String buffer;
+        // don't use ready() here; it returns false whenever a
+        // pipe is waiting for more output
+        while ((buffer = infile.readLine()) != null) {
+            if (buffer.startsWith("Query:"))
+                featurePos = StringUtil.atoi(buffer,7);
+            else if (buffer.startsWith("Domain annotation for each model (and alignments):")) {
+                buffer = infile.readLine();
+
+                while (buffer.startsWith(">> ")) {
+                    Long modelLength = null;
+                    String modelName = null;
+                    StringTokenizer st = new StringTokenizer(buffer);
+                    try {
+                        st.nextToken();
+                        modelName = st.nextToken();
+
+                        modelLength = modelNameToLength.get(modelName);
+                        if (modelLength == null)
+                            throw new IllegalStateException("No recognized domain in HMMER output line '"+buffer+"'");
+                    }
+                    catch (NoSuchElementException e) {
+                        throw new Exception("Format error in HMMER output line '"+buffer+"'");
+                    }
+                    buffer = infile.readLine();
+                    buffer = infile.readLine();
+                    buffer = infile.readLine();
+
+                    if (buffer.startsWith(">> "))
+                        continue;
+
+                    while (buffer.length() > 0) {
+                        st = new StringTokenizer(buffer.substring(7));
+                        try {
+                            double score = StringUtil.atod(st.nextToken());
+                            st.nextToken(); // bias
+                            st.nextToken(); // c-evalue
+
+                            String eString = st.nextToken();  // i-evalue
+                            // these numbers are 1-offset, for
+                            // compatibility with RPS-BLAST parsing code:
+                            int hStart = StringUtil.atoi(st.nextToken());
+                            int hLength = StringUtil.atoi(st.nextToken()) - hStart + 1;
+
+                            st.nextToken(); // bounds
+
+                            // these numbers are 1-offset, for
+                            // compatibility with RPS-BLAST parsing code:
+                            int start = StringUtil.atoi(st.nextToken());
+                            int l = StringUtil.atoi(st.nextToken()) - start + 1;
+
+                            // save this hit
+                            double coverage = (double)hLength / (double)modelLength;
+                            callback.next(featurePos,
+                                          modelName,
+                                          (long)start,
+                                          (long)start + l - 1,
+                                          Double.parseDouble(eString),
+                                          score,
+                                          coverage);
+                        }
+                        catch (NoSuchElementException e) {
+                            throw new Exception("Format error in HMMER output line '"+buffer+"'");
+                        }
+                        buffer = infile.readLine();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+       Parses the per-domain table written by hmmscan --domtblout,
+       passing each hit to a callback.  Hits are reported in the
+       same order, and with the same values, as the text report
+       parsed by parseHmmerOutput.
+    */
+    public static void parseHmmerDomTable(BufferedReader infile,
+                                          Map<String,Long> modelNameToLength,
+                                          DomainHitCallback callback) throws Exception {
+        String buffer;
+        while ((buffer = infile.readLine()) != null) {
+            if ((buffer.length() == 0) || buffer.startsWith("#"))
+                continue;
+            StringTokenizer st = new StringTokenizer(buffer);
+            try {
+                String modelName = st.nextToken(); // target name
+                String acc = st.nextToken(); // target accession
+                if (!acc.equals("-"))
+                    modelName = acc;
+                Long modelLength = modelNameToLength.get(modelName);
+                if (modelLength == null)
+                    throw new IllegalStateException("No recognized domain in HMMER output line '"+buffer+"'");
+                st.nextToken(); // tlen
+                int featurePos = StringUtil.atoi(st.nextToken()); // query name
+                st.nextToken(); // query accession
+                st.nextToken(); // qlen
+                st.nextToken(); // full sequence E-value
+                st.nextToken(); // full sequence score
+                st.nextToken(); // full sequence bias
+                st.nextToken(); // domain #
+                st.nextToken(); // of
+                st.nextToken(); // c-evalue
+                String eString = st.nextToken(); // i-evalue
+                double score = StringUtil.atod(st.nextToken());
+                st.nextToken(); // bias
+
+                // these numbers are 1-offset, for
+                // compatibility with RPS-BLAST parsing code:
+                int hStart = StringUtil.atoi(st.nextToken());
+                int hLength = StringUtil.atoi(st.nextToken()) - hStart + 1;
+                int start = StringUtil.atoi(st.nextToken());
+                int l = StringUtil.atoi(st.nextToken()) - start + 1;
+
+                double coverage = (double)hLength / (double)modelLength;
+                callback.next(featurePos,
+                              modelName,
+                              (long)start,
+                              (long)start + l - 1,
+                              Double.parseDouble(eString),
+                              score,
+                              coverage);
+            }
+            catch (NoSuchElementException e) {
+                throw new Exception("Format error in HMMER output line '"+buffer+"'");
+            }
+        }
+    }
+
+    /**
+       Parses the per-domain table written by hmmsearch --domtblout,
+       passing each hit to a callback.  In hmmsearch output the
+       query is the model and the target is the protein, so the
+       columns are swapped relative to hmmscan.<p>
+
+       Per-domain (independent) E-values are corrected to match
+       what hmmscan would report:  each is the domain's P-value times
+       the number of significant targets in the search, which is
+       the number of proteins hit by the model in hmmsearch, but the
+       number of models hitting the protein in hmmscan.  All hits
+       are read before any are reported, because both counts
+       are needed.
+    */
+    public static void parseHmmsearchDomTable(BufferedReader infile,
+                                              Map<String,Long> modelNameToLength,
+                                              DomainHitCallback callback) throws Exception {
+        List<String> modelNames = new ArrayList<String>();
+        List<Integer> featurePositions = new ArrayList<Integer>();
+        List<double[]> values = new ArrayList<double[]>();
+        Map<String,Set<Integer>> modelToFeatures = new HashMap<String,Set<Integer>>();
+        Map<Integer,Set<String>> featureToModels = new HashMap<Integer,Set<String>>();
+
+        String buffer;
+        while ((buffer = infile.readLine()) != null) {
+            if ((buffer.length() == 0) || buffer.startsWith("#"))
+                continue;
+            StringTokenizer st = new StringTokenizer(buffer);
+            try {
+                int featurePos = StringUtil.atoi(st.nextToken()); // target name
+                st.nextToken(); // target accession
+                st.nextToken(); // tlen
+                String modelName = st.nextToken(); // query name
+                String acc = st.nextToken(); // query accession
+                if (!acc.equals("-"))
+                    modelName = acc;
+                Long modelLength = modelNameToLength.get(modelName);
+                if (modelLength == null)
+                    throw new IllegalStateException("No recognized domain in HMMER output line '"+buffer+"'");
+                st.nextToken(); // qlen
+                st.nextToken(); // full sequence E-value
+                st.nextToken(); // full sequence score
+                st.nextToken(); // full sequence bias
+                st.nextToken(); // domain #
+                st.nextToken(); // of
+                st.nextToken(); // c-evalue
+                double evalue = Double.parseDouble(st.nextToken()); // i-evalue
+                double score = StringUtil.atod(st.nextToken());
+                st.nextToken(); // bias
+
+                // these numbers are 1-offset, for
+                // compatibility with RPS-BLAST parsing code:
+                int hStart = StringUtil.atoi(st.nextToken());
+                int hLength = StringUtil.atoi(st.nextToken()) - hStart + 1;
+                int start = StringUtil.atoi(st.nextToken());
+                int stop = StringUtil.atoi(st.nextToken());
+
+                modelNames.add(modelName);
+                featurePositions.add(featurePos);
+                values.add(new double[] { start,
+                                          stop,
+                                          evalue,
+                                          score,
+                                          (double)hLength / (double)modelLength });
+
+                Set<Integer> features = modelToFeatures.get(modelName);
+                if (features == null) {
+                    features = new HashSet<Integer>();
+                    modelToFeatures.put(modelName, features);
+                }
+                features.add(featurePos);
+                Set<String> models = featureToModels.get(featurePos);
+                if (models == null) {
+                    models = new HashSet<String>();
+                    featureToModels.put(featurePos, models);
+                }
+                models.add(modelName);
+            }
+            catch (NoSuchElementException e) {
+                throw new Exception("Format error in HMMER output line '"+buffer+"'");
+            }
+        }
+
+        for (int i=0; i<modelNames.size(); i++) {
+            String modelName = modelNames.get(i);
+            int featurePos = featurePositions.get(i);
+            double[] v = values.get(i);
+            double evalue = v[2]
+                / modelToFeatures.get(modelName).size()
+                * featureToModels.get(featurePos).size();
+            callback.next(featurePos,
+                          modelName,
+                          (long)v[0],
+                          (long)v[1],
+                          evalue,
+                          v[3],
+                          v[4]);
+        }
+    }
+
+    /**
+       Splits a FASTA file into up to nShards files with roughly
+       equal numbers of residues.  Sequences are assigned longest
+       first to the shard with the fewest residues so far, then
+       written out in their original order.  Returns the list of
+       non-empty shard files.
+    */
+    public static List<File> splitFasta(File fastaFile,
+                                        int nShards) throws Exception {
+        List<String> ids = new ArrayList<String>();
+        List<String> seqs = new ArrayList<String>();
+        BufferedReader infile = IO.openReader(fastaFile.getPath());
+        if (infile==null)
+            throw new Exception("failed to open FASTA file "+fastaFile.getPath());
+        try {
+            StringBuilder seq = null;
+            String buffer;
+            while ((buffer=infile.readLine()) != null) {
+                if (buffer.startsWith(">")) {
+                    if (seq != null)
+                        seqs.add(seq.toString());
+                    ids.add(buffer.substring(1).trim());
+                    seq = new StringBuilder();
+                }
+                else if (seq != null)
+                    seq.append(buffer.trim());
+            }
+            if (seq != null)
+                seqs.add(seq.toString());
+        }
+        finally {
+            infile.close();
+        }
+
+        final List<String> allSeqs = seqs;
+        Integer[] order = new Integer[seqs.size()];
+        for (int i=0; i<order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return Integer.compare(allSeqs.get(o2).length(),
+                                           allSeqs.get(o1).length());
+                }
+            });
+
+        nShards = Math.max(1, Math.min(nShards, seqs.size()));
+        long[] residues = new long[nShards];
+        int[] shardOf = new int[seqs.size()];
+        for (Integer i : order) {
+            int best = 0;
+            for (int j=1; j<nShards; j++)
+                if (residues[j] < residues[best])
+                    best = j;
+            shardOf[i] = best;
+            residues[best] += seqs.get(i).length();
+        }
+
+        List<File> rv = new ArrayList<File>();
+        try {
+            for (int j=0; j<nShards; j++) {
+                File shardFile = File.createTempFile("proteome", ".fasta", tempDir);
+                rv.add(shardFile);
+                FastaWriter fw = new FastaWriter(shardFile);
+                try {
+                    for (int i=0; i<seqs.size(); i++)
+                        if (shardOf[i]==j)
+                            fw.write(ids.get(i), seqs.get(i));
+                }
+                finally {
+                    try { fw.close(); } catch (Exception ignore) {}
+                }
+            }
+        }
+        catch (Exception e) {
+            for (File f : rv)
+                try { f.delete(); } catch (Exception ignore) {}
+            throw e;
+        }
+        return rv;
+    }
+
+    public static File getBinDir() {
+        File ret = new File("/kb/module/dependencies/bin");
+        if (!ret.exists())
+            ret.mkdir();
+        return ret;
+    }
+
+    public static File getDomainsDir() {
+        File ret = new File(tempDir, "domains");
+        if (!ret.exists())
+            ret.mkdir();
+        return ret;
+    }
+
+    /**
+       Returns the length of each model in a library, by accession,
+       to compute coverage.  This comes from the library's
+       ModelTable if it has one, or else from its domains.  The
+       library files must already be prepared.  This replaces
+       modelNameToRefConsensus in Roman's legacy code.
+    */
+    public static Map<String,Long> getModelNameToLength(DomainLibrary dl) throws Exception {
+        ModelTable table = ModelTable.get(new File(getDomainsDir(), dl.getLibraryFiles().get(0).getFileName()));
+        if (table != null)
+            return table.getModelNameToLength();
+        if (dl.getDomains() == null)
+            throw new IllegalStateException("Library "+dl.getId()+" has no models");
+        Map<String,Long> rv = new HashMap<String,Long>();
+        Map<String,DomainModel> libDomains = dl.getDomains();
+        for (String accession : libDomains.keySet()) {
+            DomainModel m = libDomains.get(accession);
+            rv.put(accession, m.getLength());
+        }
+        return rv;
+    }
+
+    /**
+       Gets a library for searching from the workspace.  Libraries
+       with a ModelTable are fetched without their domains, which
+       searches don't need, and which are most of the object;
+       others are fetched whole.  Library files are prepared
+       before returning.
+    */
+    public static DomainLibrary getSearchLibrary(WorkspaceClient wc,
+                                                 String ref,
+                                                 String shockURL,
+                                                 AuthToken token) throws Exception {
+        DomainLibrary dl = wc.getObjectSubset(Arrays.asList(new SubObjectIdentity()
+                                                            .withRef(ref)
+                                                            .withIncluded(librarySearchPaths))).get(0).getData().asClassInstance(DomainLibrary.class);
+        prepareLibraryFiles(dl, shockURL, token);
+        if (ModelTable.get(new File(getDomainsDir(), dl.getLibraryFiles().get(0).getFileName())) == null)
+            dl = wc.getObjects(Arrays.asList(new ObjectIdentity().withRef(ref))).get(0).getData().asClassInstance(DomainLibrary.class);
+        return dl;
+    }
+
+    /**
+       gets all the required library files out of shock.  Only
+       supports publicly readable libraries for now (private libraries
+       cannot currently be uploaded).  Each file is downloaded under
+       a temporary name and then renamed, so a file being fetched
+       by another job is never seen half-written.
+    */
+    public static void prepareLibraryFiles(DomainLibrary dl,
+                                           String shockURL,
+                                           AuthToken token) throws Exception {
+        File dir = getDomainsDir();
         for (Handle h : dl.getLibraryFiles()) {
             File f = new File(dir.getPath()+"/"+h.getFileName());
             if (f.canRead())
                 continue;
-            fromShock(h, shockURL, token, f, false);
+            File tmp = File.createTempFile(h.getFileName(), ".part", dir);
+            boolean renamed = false;
+            try {
+                if (fromShock(h, shockURL, token, tmp, false) != null)
+                    renamed = tmp.renameTo(f);
+            }
+            finally {
+                if (!renamed)
+                    tmp.delete();
+            }
         }
     }
 
@@ -599,11 +2517,164 @@ public class DomainAnnotationImpl {
         return new File(getBinDir()+"/hmmscan.linux");
     }
 
+    private static File getHmmsearchBin() throws Exception {
+        return new File(getBinDir()+"/hmmsearch.linux");
+    }
+
+    private static File getHmmpressBin() throws Exception {
+        return new File(getBinDir()+"/hmmpress.linux");
+    }
+
+    /**
+       Picks the HMMER program to search an HMM library, based on
+       the hmmer-strategy setting.  hmmscan reads the whole library
+       once for every protein, while hmmsearch reads the proteome once
+       for every model, so hmmsearch is faster for big proteomes
+       as long as the library isn't too big.  Returns either
+       "hmmscan-3.1b1" or "hmmsearch-3.1b1".
+    */
+    public static String chooseHmmerProgram(long residueCount,
+                                            int modelCount) {
+        if (hmmerStrategy.equals("hmmsearch"))
+            return "hmmsearch-3.1b1";
+        if (hmmerStrategy.equals("auto") &&
+            (residueCount >= hmmsearchMinResidues) &&
+            (modelCount <= hmmsearchMaxModels))
+            return "hmmsearch-3.1b1";
+        return "hmmscan-3.1b1";
+    }
+
+    /**
+       Describes the parameters used to search a library with a
+       given program; hits found with different parameters are
+       cached separately.  hmmsearch E-values are converted to
+       approximate hmmscan's, but are cached separately so each
+       program always gives the same results for a protein.
+       HmmEngine ("hmmscan-java") and PssmEngine ("rpsblast-java")
+       scores differ slightly from hmmscan and rpsblast, so they are
+       cached separately; HmmEngine hits are Forward scores, unlike
+       those cached by earlier (Viterbi) versions.
+    */
+    public static String getSearchParams(String program) {
+        if (program.startsWith("rpsblast-"))
+            return program+" -evalue "+MAX_BLAST_EVALUE;
+        else if (program.equals("hmmscan-java"))
+            return program+" --cut_tc forward";
+        else
+            return program+" --cut_tc";
+    }
+
+    /**
+       Runs RPS-BLAST or HMMER (depending on the program used by
+       the library) on a file, returning the output file
+    */
+    public static File runSearch(String program,
+                                 File dbFile,
+                                 File fastaQuery,
+                                 int threads) throws Exception {
+        if (program.equals("rpsblast-2.2.30"))
+            return runRpsBlast(dbFile, fastaQuery, threads);
+        else if (program.equals("hmmsearch-3.1b1"))
+            return runHmmsearch(dbFile, fastaQuery, threads, File.createTempFile("hmmer", ".tbl", tempDir));
+        else
+            return runHmmer(dbFile, fastaQuery, threads);
+    }
+
+    /**
+       Runs RPS-BLAST or HMMER on a file, parsing the output while
+       the search is still running.  The output goes through a named
+       pipe, so it is never written to disk.
+    */
+    public static void runSearchStreaming(final String program,
+                                          final File dbFile,
+                                          final File fastaQuery,
+                                          final int threads,
+                                          Map<String,Long> modelNameToLength,
+                                          DomainHitCallback callback) throws Exception {
+        final File pipe = makePipe(program.equals("rpsblast-2.2.30") ? "rps" : "hmmer");
+        ExecutorService runner = Executors.newSingleThreadExecutor();
+        Future<File> search = null;
+        try {
+            search = runner.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        try {
+                            if (program.equals("rpsblast-2.2.30"))
+                                return runRpsBlast(dbFile, fastaQuery, threads, pipe);
+                            else if (program.equals("hmmsearch-3.1b1"))
+                                return runHmmsearch(dbFile, fastaQuery, threads, pipe);
+                            else
+                                return runHmmer(dbFile, fastaQuery, threads, pipe);
+                        }
+                        finally {
+                            releasePipe(pipe);
+                        }
+                    }
+                });
+            parseSearchOutput(program, pipe, modelNameToLength, callback);
+            getResult(search);
+        }
+        finally {
+            // if parsing failed, stop the search and make sure
+            // it isn't stuck waiting for us to open the pipe
+            if (search != null)
+                search.cancel(true);
+            releasePipe(pipe);
+            runner.shutdownNow();
+            pipe.delete();
+        }
+    }
+
+    /**
+       makes a named pipe in the temp directory
+    */
+    private static File makePipe(String prefix) throws Exception {
+        File pipe = File.createTempFile(prefix, ".pipe", tempDir);
+        pipe.delete();
+        Process p = Runtime.getRuntime().exec(CorrectProcess.arr("mkfifo",
+                                                                 pipe.getAbsolutePath()));
+        int procExitValue = p.waitFor();
+        if (procExitValue != 0)
+            throw new IllegalStateException("mkfifo exit code: " + procExitValue);
+        return pipe;
+    }
+
+    /**
+       Opening a named pipe for both reading and writing never blocks
+       on Linux, so doing this releases any thread still waiting to
+       open either end of the pipe.  If the other end is already
+       open, this has no effect.
+    */
+    private static void releasePipe(File pipe) {
+        try {
+            new RandomAccessFile(pipe, "rw").close();
+        }
+        catch (Exception ignore) {}
+    }
+
     /**
        Runs RPS-BLAST on a file
     */
     public static File runRpsBlast(File dbFile, File fastaQuery) throws Exception {
-        File tempOutputFile = File.createTempFile("rps", ".tab", tempDir);
+        return runRpsBlast(dbFile, fastaQuery, 0);
+    }
+
+    /**
+       Runs RPS-BLAST on a file, using a given number of threads
+       (or the RPS-BLAST default, if threads is less than 1)
+    */
+    public static File runRpsBlast(File dbFile, File fastaQuery, int threads) throws Exception {
+        return runRpsBlast(dbFile, fastaQuery, threads, File.createTempFile("rps", ".tab", tempDir));
+    }
+
+    /**
+       Runs RPS-BLAST on a file, writing output to a given file
+       (which may be a named pipe)
+    */
+    public static File runRpsBlast(File dbFile,
+                                   File fastaQuery,
+                                   int threads,
+                                   File tempOutputFile) throws Exception {
         CorrectProcess cp = null;
         ByteArrayOutputStream errBaos = null;
         Exception err = null;
@@ -611,11 +2682,14 @@ public class DomainAnnotationImpl {
         int procExitValue = -1;
         FileOutputStream fos = new FileOutputStream(tempOutputFile);
         try {
-            Process p = Runtime.getRuntime().exec(CorrectProcess.arr(binPath,
-                                                                     "-db", dbFile.getAbsolutePath(),
-                                                                     "-query", fastaQuery.getAbsolutePath(),
-                                                                     "-outfmt", RpsBlastParser.OUTPUT_FORMAT_STRING,
-                                                                     "-evalue", MAX_BLAST_EVALUE));
+            List<String> args = new ArrayList<String>(Arrays.asList(binPath,
+                                                                    "-db", dbFile.getAbsolutePath(),
+                                                                    "-query", fastaQuery.getAbsolutePath(),
+                                                                    "-outfmt", RpsBlastParser.OUTPUT_FORMAT_STRING,
+                                                                    "-evalue", MAX_BLAST_EVALUE));
+            if (threads > 0)
+                args.addAll(Arrays.asList("-num_threads", ""+threads));
+            Process p = Runtime.getRuntime().exec(args.toArray(new String[args.size()]));
             errBaos = new ByteArrayOutputStream();
             cp = new CorrectProcess(p, fos, "", errBaos, "");
             p.waitFor();
@@ -654,20 +2728,92 @@ public class DomainAnnotationImpl {
        Runs HMMER on a file
     */
     public static File runHmmer(File dbFile, File fastaQuery) throws Exception {
-        File tempOutputFile = File.createTempFile("hmmer", ".txt", tempDir);
+        return runHmmer(dbFile, fastaQuery, 0);
+    }
+
+    /**
+       Runs HMMER on a file, using a given number of threads
+       (or the HMMER default, if threads is less than 1)
+    */
+    public static File runHmmer(File dbFile, File fastaQuery, int threads) throws Exception {
+        return runHmmer(dbFile, fastaQuery, threads, File.createTempFile("hmmer", ".txt", tempDir));
+    }
+
+    /**
+       Runs HMMER on a file, writing output to a given file
+       (which may be a named pipe)
+    */
+    public static File runHmmer(File dbFile,
+                                File fastaQuery,
+                                int threads,
+                                File tempOutputFile) throws Exception {
+        return runHmmer(dbFile, fastaQuery, threads, tempOutputFile, hmmerDomTable);
+    }
+
+    /**
+       Runs HMMER on a file, writing output to a given file
+       (which may be a named pipe).  If domTable is true, the
+       output is the --domtblout table, and the text report
+       is discarded.
+    */
+    public static File runHmmer(File dbFile,
+                                File fastaQuery,
+                                int threads,
+                                File tempOutputFile,
+                                boolean domTable) throws Exception {
+        List<String> args = new ArrayList<String>(Arrays.asList(getHmmerBin().getAbsolutePath(),
+                                                                "--acc",
+                                                                "--notextw",
+                                                                "--cut_tc"));
+        if (threads > 0)
+            args.addAll(Arrays.asList("--cpu", ""+threads));
+        if (domTable)
+            args.addAll(Arrays.asList("--domtblout", tempOutputFile.getAbsolutePath(),
+                                      "-o", "/dev/null"));
+        args.add(dbFile.getAbsolutePath());
+        args.add(fastaQuery.getAbsolutePath());
+        return runHmmerProcess("HMMSCAN", args, tempOutputFile, domTable);
+    }
+
+    /**
+       Runs hmmsearch on a file, with the HMM library as query and
+       the proteome as target, writing the --domtblout table to a
+       given file (which may be a named pipe)
+    */
+    public static File runHmmsearch(File dbFile,
+                                    File fastaQuery,
+                                    int threads,
+                                    File tempOutputFile) throws Exception {
+        List<String> args = new ArrayList<String>(Arrays.asList(getHmmsearchBin().getAbsolutePath(),
+                                                                "--acc",
+                                                                "--notextw",
+                                                                "--cut_tc"));
+        if (threads > 0)
+            args.addAll(Arrays.asList("--cpu", ""+threads));
+        args.addAll(Arrays.asList("--domtblout", tempOutputFile.getAbsolutePath(),
+                                  "-o", "/dev/null"));
+        args.add(dbFile.getAbsolutePath());
+        args.add(fastaQuery.getAbsolutePath());
+        return runHmmerProcess("HMMSEARCH", args, tempOutputFile, true);
+    }
+
+    /**
+       Runs a HMMER program with the given arguments.  If domTable
+       is false, its output is saved in tempOutputFile; otherwise,
+       the program writes that file itself.
+    */
+    private static File runHmmerProcess(String name,
+                                        List<String> args,
+                                        File tempOutputFile,
+                                        boolean domTable) throws Exception {
         CorrectProcess cp = null;
         ByteArrayOutputStream errBaos = null;
         Exception err = null;
-        String binPath = getHmmerBin().getAbsolutePath();
         int procExitValue = -1;
-        FileOutputStream fos = new FileOutputStream(tempOutputFile);
+        // with --domtblout, HMMER opens the output file itself
+        OutputStream fos = (domTable ? new ByteArrayOutputStream() : new FileOutputStream(tempOutputFile));
         try {
-            Process p = Runtime.getRuntime().exec(CorrectProcess.arr(binPath,
-                                                                     "--acc",
-                                                                     "--notextw",
-                                                                     "--cut_tc",
-                                                                     dbFile.getAbsolutePath(),
-                                                                     fastaQuery.getAbsolutePath()));
+            Process p = Runtime.getRuntime().exec(args.toArray(new String[args.size()]));
             errBaos = new ByteArrayOutputStream();
             cp = new CorrectProcess(p, fos, "", errBaos, "");
             p.waitFor();
@@ -692,11 +2838,11 @@ public class DomainAnnotationImpl {
         if (errBaos != null) {
             String err_text = new String(errBaos.toByteArray());
             if (err_text.length() > 0)
-                err = new Exception("HMMSCAN: " + err_text, err);
+                err = new Exception(name + ": " + err_text, err);
         }
         if (procExitValue != 0) {
             if (err == null)
-                err = new IllegalStateException("HMMSCAN exit code: " + procExitValue);
+                err = new IllegalStateException(name + " exit code: " + procExitValue);
             throw err;
         }
         return tempOutputFile;
@@ -738,11 +2884,68 @@ public class DomainAnnotationImpl {
         return metadata;
     }
     
+    /**
+       Returns the ids of features in a genome that have the same
+       protein sequence as a feature with the same id in an earlier
+       version of the genome.  Hits are in protein coordinates, so
+       these features can keep their old hits even if they moved.
+    */
+    public static Set<String> findUnchangedFeatures(Genome priorGenome,
+                                                    Genome genome) throws Exception {
+        Map<String,String> priorKeys = new HashMap<String,String>();
+        for (Feature feat : priorGenome.getFeatures()) {
+            String seq = feat.getProteinTranslation();
+            if ((feat.getId() != null) && (seq != null) && !seq.isEmpty())
+                priorKeys.put(feat.getId(), HitCache.sequenceKey(seq));
+        }
+        Set<String> rv = new HashSet<String>();
+        for (Feature feat : genome.getFeatures()) {
+            String seq = feat.getProteinTranslation();
+            String key = priorKeys.get(feat.getId());
+            if ((key != null) && (seq != null) && key.equals(HitCache.sequenceKey(seq)))
+                rv.add(feat.getId());
+        }
+        return rv;
+    }
+
+    /**
+       copies hits for a set of features from one DomainAnnotation
+       object to another, which may be of a different version of
+       the genome.  Features are found in the target using its
+       feature_to_contig_and_index, so the contigs and order of
+       features can differ between the two.  Only hits to models
+       with accessions in a given set are copied, unless the set
+       is null.
+    */
+    public static void copyHits(DomainAnnotation source,
+                                DomainAnnotation target,
+                                Set<String> featureIds,
+                                Set<String> accessions) throws Exception {
+        Map<String, Tuple2<String, Long>> targetIndex = target.getFeatureToContigAndIndex();
+        Map<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> targetData = target.getData();
+        for (List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> sourceElements : source.getData().values()) {
+            for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> sElement : sourceElements) {
+                String featId = sElement.getE1();
+                if (!featureIds.contains(featId) || sElement.getE5().isEmpty())
+                    continue;
+                Tuple2<String, Long> contigFeatIndex = targetIndex.get(featId);
+                if (contigFeatIndex == null)
+                    continue;
+                Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> tElement = targetData.get(contigFeatIndex.getE1()).get(contigFeatIndex.getE2().intValue());
+                for (String accession : sElement.getE5().keySet())
+                    if ((accessions == null) || accessions.contains(accession))
+                        tElement.getE5().put(accession, sElement.getE5().get(accession));
+            }
+        }
+    }
+
     /**
        combines annotation data from two DomainAnnotation objects;
-       must be from the same genome.  Note that this will fail if
-       results are in different order, or if two libraries have
-       models with the same accessions
+       must be from the same genome.  Elements are matched by
+       feature id, so the annotations' elements may be in any
+       order; features not in the target are skipped.  If both
+       have hits to the same accession in a feature, the source's
+       places are added after the target's.
     */
     public static void combineData(DomainAnnotation source,
                                    DomainAnnotation target) throws Exception {
@@ -751,17 +2954,23 @@ public class DomainAnnotationImpl {
         if (!source.getUsedDmsRef().equals(target.getUsedDmsRef()))
             throw new IllegalArgumentException("Error: DomainAnnotation objects from different domain model sets can't be combined");
 
-        Map<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> sourceData = source.getData();
         Map<String, List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>>> targetData = target.getData();
-        for (String contigID : sourceData.keySet()) {
-            List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> sourceElements = sourceData.get(contigID);
-            List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> targetElements = targetData.get(contigID);
-            ListIterator<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> sIterator = sourceElements.listIterator();
-            ListIterator<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> tIterator = targetElements.listIterator();
-            while (sIterator.hasNext()) {
-                Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> sElement = sIterator.next();
-                Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> tElement = tIterator.next();
-                tElement.getE5().putAll(sElement.getE5());
+        Map<String, Tuple2<String, Long>> targetIndex = target.getFeatureToContigAndIndex();
+        for (List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> sourceElements : source.getData().values()) {
+            for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> sElement : sourceElements) {
+                if (sElement.getE5().isEmpty())
+                    continue;
+                Tuple2<String, Long> contigFeatIndex = targetIndex.get(sElement.getE1());
+                if (contigFeatIndex == null)
+                    continue;
+                Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> tDomains = targetData.get(contigFeatIndex.getE1()).get(contigFeatIndex.getE2().intValue()).getE5();
+                for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : sElement.getE5().entrySet()) {
+                    List<Tuple5<Long, Long, Double, Double, Double>> places = tDomains.get(domain.getKey());
+                    if (places == null)
+                        tDomains.put(domain.getKey(), domain.getValue());
+                    else
+                        places.addAll(domain.getValue());
+                }
             }
         }
     }
@@ -49,6 +49,7 @@ public class DomainAnnotationServer extends JsonServerServlet {
         //BEGIN_CONSTRUCTOR
         wsUrl = config.get("workspace-url");
         shockUrl = config.get("shock-url");
+        DomainAnnotationImpl.configure(config);
         //END_CONSTRUCTOR
     }
 
@@ -69,6 +70,43 @@ public class DomainAnnotationServer extends JsonServerServlet {
         return returnVal;
     }
 
+    /**
+     * <p>Original spec-file function name: search_protein_domains</p>
+     * <pre>
+     * Search for domains in a ProteinSet; output_result_id in the
+     * output is a ProteinDomainAnnotation
+     * </pre>
+     * @param   input   instance of type {@link domainannotation.SearchProteinDomainsInput SearchProteinDomainsInput}
+     * @return   parameter "output" of type {@link domainannotation.SearchDomainsOutput SearchDomainsOutput}
+     */
+    @JsonServerMethod(rpc = "DomainAnnotation.search_protein_domains", async=true)
+    public SearchDomainsOutput searchProteinDomains(SearchProteinDomainsInput input, AuthToken authPart, RpcContext jsonRpcContext) throws Exception {
+        SearchDomainsOutput returnVal = null;
+        //BEGIN search_protein_domains
+        returnVal = DomainAnnotationImpl.runProteins(wsUrl,shockUrl,authPart,input);
+        //END search_protein_domains
+        return returnVal;
+    }
+
+    /**
+     * <p>Original spec-file function name: search_domains_batch</p>
+     * <pre>
+     * Search for domains in every genome in a GenomeSet or GenomeList.
+     * Proteins from many genomes are searched together, so this is
+     * much faster than searching each genome separately.
+     * </pre>
+     * @param   input   instance of type {@link domainannotation.SearchDomainsBatchInput SearchDomainsBatchInput}
+     * @return   parameter "output" of type {@link domainannotation.SearchDomainsBatchOutput SearchDomainsBatchOutput}
+     */
+    @JsonServerMethod(rpc = "DomainAnnotation.search_domains_batch", async=true)
+    public SearchDomainsBatchOutput searchDomainsBatch(SearchDomainsBatchInput input, AuthToken authPart, RpcContext jsonRpcContext) throws Exception {
+        SearchDomainsBatchOutput returnVal = null;
+        //BEGIN search_domains_batch
+        returnVal = DomainAnnotationImpl.runBatch(wsUrl,shockUrl,authPart,input);
+        //END search_domains_batch
+        return returnVal;
+    }
+
     /**
      * <p>Original spec-file function name: version</p>
      * <pre>
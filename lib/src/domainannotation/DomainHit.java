@@ -0,0 +1,58 @@
+package domainannotation;
+
+/**
+   One hit of a domain model to a protein, with the same values
+   as a domain_place in a DomainAnnotation object.  start and stop
+   are 1-offset positions in the protein.
+*/
+public class DomainHit {
+    private final String accession;
+    private final long start;
+    private final long stop;
+    private final double evalue;
+    private final double bitscore;
+    private final double coverage;
+
+    public DomainHit(String accession,
+                     long start,
+                     long stop,
+                     double evalue,
+                     double bitscore,
+                     double coverage) {
+        this.accession = accession;
+        this.start = start;
+        this.stop = stop;
+        this.evalue = evalue;
+        this.bitscore = bitscore;
+        this.coverage = coverage;
+    }
+
+    public String getAccession() {
+        return accession;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getStop() {
+        return stop;
+    }
+
+    public double getEvalue() {
+        return evalue;
+    }
+
+    public double getBitscore() {
+        return bitscore;
+    }
+
+    public double getCoverage() {
+        return coverage;
+    }
+
+    @Override
+    public String toString() {
+        return "DomainHit [accession="+accession+", start="+start+", stop="+stop+", evalue="+evalue+", bitscore="+bitscore+", coverage="+coverage+"]";
+    }
+}
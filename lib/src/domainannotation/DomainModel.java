@@ -21,7 +21,9 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
  * length - length of profile
  * model_type - domain model type
  * trusted_cutoff - (optional) trusted cutoff of domain model for HMM libraries
- * @optional cdd_id trusted_cutoff
+ * checksum - (optional) MD5 of the model in HMM libraries, used to find
+ *     models that changed between library versions
+ * @optional cdd_id trusted_cutoff checksum
  * </pre>
  * 
  */
@@ -34,7 +36,8 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "description",
     "length",
     "model_type",
-    "trusted_cutoff"
+    "trusted_cutoff",
+    "checksum"
 })
 public class DomainModel {
 
@@ -52,6 +55,8 @@ public class DomainModel {
     private String modelType;
     @JsonProperty("trusted_cutoff")
     private Double trustedCutoff;
+    @JsonProperty("checksum")
+    private String checksum;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("accession")
@@ -159,6 +164,21 @@ public class DomainModel {
         return this;
     }
 
+    @JsonProperty("checksum")
+    public String getChecksum() {
+        return checksum;
+    }
+
+    @JsonProperty("checksum")
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public DomainModel withChecksum(String checksum) {
+        this.checksum = checksum;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -171,7 +191,7 @@ public class DomainModel {
 
     @Override
     public String toString() {
-        return ((((((((((((((((("DomainModel"+" [accession=")+ accession)+", cddId=")+ cddId)+", name=")+ name)+", description=")+ description)+", length=")+ length)+", modelType=")+ modelType)+", trustedCutoff=")+ trustedCutoff)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((((((("DomainModel"+" [accession=")+ accession)+", cddId=")+ cddId)+", name=")+ name)+", description=")+ description)+", length=")+ length)+", modelType=")+ modelType)+", trustedCutoff=")+ trustedCutoff)+", checksum=")+ checksum)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
@@ -3,6 +3,7 @@ package domainannotation;
 import java.io.*;
 import java.util.*;
 import java.net.URL;
+import java.security.MessageDigest;
 
 import org.strbio.IO;
 import org.strbio.util.*;
@@ -209,6 +210,22 @@ public class DomainModelLibPreparation {
 	
         dl.setDomains(domains);
 
+        // index the models' consensus sequences, for prefiltering,
+        // and save a compact table of the models' lengths and
+        // cutoffs for searches; both are saved with the other
+        // library files
+        Map<String,String> consensusSequences;
+        Map<String,Double> trustedCutoffs = null;
+        if (source.equals("CDD"))
+            consensusSequences = PssmEngine.get(new File(fileName)).getConsensusSequences();
+        else {
+            HmmEngine engine = HmmEngine.get(new File(fileName));
+            consensusSequences = engine.getConsensusSequences();
+            trustedCutoffs = engine.getTrustedCutoffs();
+        }
+        KmerIndex.build(consensusSequences).write(new File(fileName+".kmers"));
+        ModelTable.build(domains, trustedCutoffs).write(new File(fileName+".models"));
+
         // find all the parsed library files; make sure
         // the "real" file for passing to blast/hmmer is first
         File libFile = new File(fileName);
@@ -293,7 +310,11 @@ public class DomainModelLibPreparation {
     /**
        Creates a set of DomainModels from a HMM library.  The info for
        each DomainModel is parsed from two files: the HMM library itself
-       and (if non-null) the Index file (e.g., Pfam-A.seed)
+       and (if non-null) the Index file (e.g., Pfam-A.seed).  Each
+       model gets a checksum of its text in the library, leaving out
+       the header, DATE and COM lines (which change whenever a model
+       is rebuilt, even if it is the same), so models that changed
+       between library versions can be found.
     */
     private static Map<String,DomainModel> parseHMMDomains(String fileName,
                                                            String indexName) throws Exception {
@@ -303,10 +324,17 @@ public class DomainModelLibPreparation {
         String name= null, acc=null, desc=null;
         double tc=0.0;
         long l=0;
+        DomainModel m = null;
+        MessageDigest md = MessageDigest.getInstance("MD5");
 
         while (infile.ready()) {
             String buffer = infile.readLine();
 
+            if (!buffer.startsWith("HMMER3") &&
+                !buffer.startsWith("DATE ") &&
+                !buffer.startsWith("COM "))
+                md.update((buffer+"\n").getBytes("UTF-8"));
+
             if (buffer.startsWith("NAME "))
                 name = buffer.substring(6).trim();
             else if (buffer.startsWith("DESC "))
@@ -318,7 +346,7 @@ public class DomainModelLibPreparation {
             else if (buffer.startsWith("LENG "))
                 l = StringUtil.atol(buffer.substring(6));
             else if (buffer.startsWith("HMM ")) {
-                DomainModel m = new DomainModel()
+                m = new DomainModel()
                     .withAccession(acc)
                     .withName(name)
                     .withDescription(desc)
@@ -326,6 +354,12 @@ public class DomainModelLibPreparation {
                     .withModelType("HMM-Family");
                 domains.put(acc,m);
             }
+            else if (buffer.startsWith("//")) {
+                if (m != null)
+                    m.setChecksum(toHex(md.digest()));
+                md.reset();
+                m = null;
+            }
         }
         infile.close();
 
@@ -340,7 +374,7 @@ public class DomainModelLibPreparation {
                     acc = buffer.substring(10);
                 else if (buffer.startsWith("#=GF TP ")) {
                     String domainType = buffer.substring(10);
-                    DomainModel m = domains.get(acc);
+                    m = domains.get(acc);
                     if (m != null)
                         m.setModelType("HMM-"+domainType);
                 }
@@ -351,6 +385,18 @@ public class DomainModelLibPreparation {
         return domains;
     }
 
+    /**
+       converts a digest to hex
+    */
+    private static String toHex(byte[] digest) {
+        StringBuilder rv = new StringBuilder();
+        for (byte b : digest) {
+            rv.append(Character.forDigit((b >> 4) & 0xf, 16));
+            rv.append(Character.forDigit(b & 0xf, 16));
+        }
+        return rv.toString();
+    }
+
     /**
        saves a DomainLibrary in the public domain workspace, under
        a given ID.  Returns ref to the object.
@@ -0,0 +1,434 @@
+package domainannotation;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   A disk-backed cache of the domain hits found in each protein,
+   so proteins that recur across many related genomes only need to
+   be searched once.  Entries are keyed by a hash of the protein
+   sequence, plus a key for the library (id and version) and the
+   search parameters, so results from different libraries or
+   programs are never mixed.  Proteins with no hits are cached too.<p>
+
+   Entries are packed into shards, so the cache doesn't take an
+   inode per protein:  under the directory for each library key,
+   the first two hex digits of the sequence key pick one of 256
+   shards.  Each shard is a data file of records (the sequence key
+   and its hits), and an index file of fixed-size entries (the
+   first 64 bits of the sequence key and the record's offset).
+   Both are only appended to, while holding a lock on the data
+   file, so several processes can share the cache.  Each process
+   reads a shard's index the first time it looks in that shard,
+   and reads only new entries after that; records are checked
+   against the sequence key, so stale or colliding index entries
+   are just misses.<p>
+
+   Sizes are counted in whole disk blocks.  When the total goes over
+   the limit, the least recently used shards are deleted until the
+   cache is back under 90% of the limit.
+*/
+public class HitCache {
+    // sizes are rounded up to this, as allocated by the filesystem
+    private static final long BLOCK_SIZE = 4096;
+
+    // bytes per index entry:  key prefix and record offset
+    private static final int ENTRY_SIZE = 16;
+
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes = -1;
+    private final Map<File,Shard> shards = new HashMap<File,Shard>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+       The index of one shard, as read by this process:  an
+       open-addressing hash table from key prefixes to record
+       offsets.  Later entries for a key replace earlier ones.
+    */
+    private static class Shard {
+        long[] keys = new long[64];
+        long[] offsets = new long[64];
+        int size = 0;
+
+        // how much of the index file has been read
+        long indexedBytes = 0;
+
+        long get(long key) {
+            int mask = keys.length-1;
+            for (int i=slot(key, mask); keys[i]!=0; i=(i+1) & mask)
+                if (keys[i]==key)
+                    return offsets[i];
+            return -1;
+        }
+
+        void put(long key,
+                 long offset) {
+            if (2*(size+1) > keys.length) {
+                long[] oldKeys = keys;
+                long[] oldOffsets = offsets;
+                keys = new long[oldKeys.length*2];
+                offsets = new long[oldKeys.length*2];
+                size = 0;
+                for (int i=0; i<oldKeys.length; i++)
+                    if (oldKeys[i] != 0)
+                        put(oldKeys[i], oldOffsets[i]);
+            }
+            int mask = keys.length-1;
+            int i = slot(key, mask);
+            while ((keys[i]!=0) && (keys[i]!=key))
+                i = (i+1) & mask;
+            if (keys[i]==0)
+                size++;
+            keys[i] = key;
+            offsets[i] = offset;
+        }
+
+        private static int slot(long key,
+                                int mask) {
+            return (int)(key ^ (key >>> 32)) & mask;
+        }
+    }
+
+    /**
+       makes a cache in a given directory, which may already
+       contain entries from a previous run
+    */
+    public HitCache(File dir,
+                    long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+    /**
+       number of lookups that found an entry
+    */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+       number of lookups that didn't find an entry
+    */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+       returns the MD5 of a string, in hex
+    */
+    public static String md5(String s) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        byte[] digest = md.digest(s.getBytes("UTF-8"));
+        StringBuilder rv = new StringBuilder();
+        for (byte b : digest) {
+            rv.append(Character.forDigit((b >> 4) & 0xf, 16));
+            rv.append(Character.forDigit(b & 0xf, 16));
+        }
+        return rv.toString();
+    }
+
+    /**
+       makes the key for a library and the parameters used to
+       search it
+    */
+    public static String libraryKey(DomainLibrary dl,
+                                    String searchParams) throws Exception {
+        return md5(dl.getId()+"\t"+dl.getVersion()+"\t"+searchParams);
+    }
+
+    /**
+       makes the key for a protein sequence
+    */
+    public static String sequenceKey(String seq) throws Exception {
+        return md5(seq.toUpperCase());
+    }
+
+    /**
+       returns the first 64 bits of a sequence key, which is never
+       0 (an empty slot in a Shard)
+    */
+    private static long keyPrefix(String sequenceKey) {
+        long rv = (Long.parseLong(sequenceKey.substring(0,8), 16) << 32) | Long.parseLong(sequenceKey.substring(8,16), 16);
+        return (rv==0 ? 1 : rv);
+    }
+
+    private File getDataFile(String libraryKey,
+                             String sequenceKey) {
+        return new File(dir, libraryKey+"/"+sequenceKey.substring(0,2)+DATA_SUFFIX);
+    }
+
+    private static File getIndexFile(File dataFile) {
+        String name = dataFile.getName();
+        return new File(dataFile.getParentFile(), name.substring(0, name.length()-DATA_SUFFIX.length())+INDEX_SUFFIX);
+    }
+
+    private Shard getShard(File dataFile) {
+        Shard rv = shards.get(dataFile);
+        if (rv == null) {
+            rv = new Shard();
+            shards.put(dataFile, rv);
+        }
+        return rv;
+    }
+
+    /**
+       Reads any index entries added since the shard was last read.
+       A shard whose index got shorter was deleted and started again,
+       so is read from the start.  A partial entry at the end (from
+       a writer that's still running, or that died) is skipped.
+    */
+    private void refresh(File dataFile,
+                         Shard shard) throws IOException {
+        File indexFile = getIndexFile(dataFile);
+        long length = indexFile.length();
+        if (length < shard.indexedBytes) {
+            shard = new Shard();
+            shards.put(dataFile, shard);
+        }
+        length -= length % ENTRY_SIZE;
+        if (length <= shard.indexedBytes)
+            return;
+        FileInputStream fis = new FileInputStream(indexFile);
+        try {
+            fis.getChannel().position(shard.indexedBytes);
+            DataInputStream is = new DataInputStream(new BufferedInputStream(fis));
+            for (long pos = shard.indexedBytes; pos < length; pos += ENTRY_SIZE)
+                shard.put(is.readLong(), is.readLong());
+        }
+        finally {
+            fis.close();
+        }
+        shard.indexedBytes = length;
+    }
+
+    /**
+       returns the offset of a protein's record, or -1 if it isn't
+       in the shard
+    */
+    private synchronized long findRecord(File dataFile,
+                                         String sequenceKey) throws IOException {
+        long key = keyPrefix(sequenceKey);
+        long rv = getShard(dataFile).get(key);
+        if (rv < 0) {
+            refresh(dataFile, getShard(dataFile));
+            rv = getShard(dataFile).get(key);
+        }
+        return rv;
+    }
+
+    /**
+       forgets this process's index of a shard, so it's read again
+    */
+    private synchronized void dropShard(File dataFile) {
+        shards.remove(dataFile);
+    }
+
+    /**
+       Returns the cached hits for a protein, or null if it isn't
+       in the cache.  Marks the shard as recently used.
+    */
+    public List<DomainHit> get(String libraryKey,
+                               String sequenceKey) {
+        File f = getDataFile(libraryKey, sequenceKey);
+        List<DomainHit> rv = null;
+        try {
+            long offset = findRecord(f, sequenceKey);
+            if (offset >= 0) {
+                RandomAccessFile raf = new RandomAccessFile(f, "r");
+                try {
+                    raf.seek(offset);
+                    DataInputStream is = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+                    if (is.readUTF().equals(sequenceKey)) {
+                        int n = is.readInt();
+                        rv = new ArrayList<DomainHit>(n);
+                        for (int i=0; i<n; i++)
+                            rv.add(new DomainHit(is.readUTF(),
+                                                 is.readLong(),
+                                                 is.readLong(),
+                                                 is.readDouble(),
+                                                 is.readDouble(),
+                                                 is.readDouble()));
+                    }
+                    else
+                        dropShard(f);
+                }
+                finally {
+                    raf.close();
+                }
+                if (rv != null)
+                    f.setLastModified(System.currentTimeMillis());
+            }
+        }
+        catch (IOException e) {
+            // missing, unreadable or replaced shards are just misses
+            dropShard(f);
+            rv = null;
+        }
+        if (rv==null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return rv;
+    }
+
+    /**
+       Stores the hits for a protein (which may be an empty list).
+       The record is appended to the shard's data file, then its
+       index entry to the index file, while holding a lock on the
+       data file, so readers never see an entry for part of a
+       record.
+    */
+    public synchronized void put(String libraryKey,
+                                 String sequenceKey,
+                                 List<DomainHit> domainHits) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream os = new DataOutputStream(buffer);
+        os.writeUTF(sequenceKey);
+        os.writeInt(domainHits.size());
+        for (DomainHit hit : domainHits) {
+            os.writeUTF(hit.getAccession());
+            os.writeLong(hit.getStart());
+            os.writeLong(hit.getStop());
+            os.writeDouble(hit.getEvalue());
+            os.writeDouble(hit.getBitscore());
+            os.writeDouble(hit.getCoverage());
+        }
+        os.close();
+        ByteBuffer record = ByteBuffer.wrap(buffer.toByteArray());
+
+        File f = getDataFile(libraryKey, sequenceKey);
+        f.getParentFile().mkdirs();
+        long added = 0;
+        RandomAccessFile dataFile = new RandomAccessFile(f, "rw");
+        try {
+            FileChannel data = dataFile.getChannel();
+            FileLock lock = data.lock();
+            try {
+                refresh(f, getShard(f));
+                long offset = data.size();
+                while (record.hasRemaining())
+                    data.write(record, offset+record.position());
+                added += blocks(data.size()) - blocks(offset);
+
+                RandomAccessFile indexFile = new RandomAccessFile(getIndexFile(f), "rw");
+                try {
+                    FileChannel index = indexFile.getChannel();
+                    long oldLength = index.size();
+                    // drop a partial entry left by a writer that died
+                    long end = oldLength - (oldLength % ENTRY_SIZE);
+                    if (end < oldLength)
+                        index.truncate(end);
+                    ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+                    entry.putLong(keyPrefix(sequenceKey));
+                    entry.putLong(offset);
+                    entry.flip();
+                    while (entry.hasRemaining())
+                        index.write(entry, end+entry.position());
+                    added += blocks(end+ENTRY_SIZE) - blocks(oldLength);
+                    Shard shard = getShard(f);
+                    shard.put(keyPrefix(sequenceKey), offset);
+                    shard.indexedBytes = end+ENTRY_SIZE;
+                }
+                finally {
+                    indexFile.close();
+                }
+            }
+            finally {
+                lock.release();
+            }
+        }
+        finally {
+            dataFile.close();
+        }
+        addBytes(added);
+    }
+
+    private static long blocks(long n) {
+        return (n + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static long shardSize(File dataFile) {
+        return blocks(dataFile.length()) + blocks(getIndexFile(dataFile).length());
+    }
+
+    /**
+       lists the data file of every shard in the cache; there are at
+       most 256 per library key
+    */
+    private List<File> listShards() {
+        List<File> rv = new ArrayList<File>();
+        File[] libraryDirs = dir.listFiles();
+        if (libraryDirs != null)
+            for (File libraryDir : libraryDirs) {
+                File[] files = libraryDir.listFiles();
+                if (files != null)
+                    for (File f : files)
+                        if (f.getName().endsWith(DATA_SUFFIX))
+                            rv.add(f);
+            }
+        return rv;
+    }
+
+    /**
+       Keeps track of the size of the cache, evicting old shards if
+       it gets too big.  Other processes' additions aren't counted
+       until the shards are listed again, when the size seems to be
+       over the limit.
+    */
+    private void addBytes(long n) {
+        if (totalBytes < 0) {
+            totalBytes = 0;
+            for (File f : listShards())
+                totalBytes += shardSize(f);
+        }
+        else
+            totalBytes += n;
+        if (totalBytes > maxBytes)
+            evict();
+    }
+
+    /**
+       deletes least recently used shards until the cache is
+       under 90% of its maximum size
+    */
+    private void evict() {
+        List<File> entries = listShards();
+        final Map<File,Long> lastUsed = new HashMap<File,Long>();
+        totalBytes = 0;
+        for (File f : entries) {
+            lastUsed.put(f, f.lastModified());
+            totalBytes += shardSize(f);
+        }
+        if (totalBytes <= maxBytes)
+            return;
+        Collections.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    return Long.compare(lastUsed.get(o1), lastUsed.get(o2));
+                }
+            });
+        long target = maxBytes / 10 * 9;
+        for (File f : entries) {
+            if (totalBytes <= target)
+                break;
+            long size = shardSize(f);
+            // the index goes first, so readers see an empty shard
+            getIndexFile(f).delete();
+            f.delete();
+            shards.remove(f);
+            totalBytes -= size;
+        }
+    }
+}
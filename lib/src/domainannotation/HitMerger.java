@@ -0,0 +1,115 @@
+package domainannotation;
+
+import java.util.*;
+
+/**
+   Merges the hits from several libraries (one HitStore each) into
+   one HitStore, joined by feature position.  Libraries can be added
+   in any order, from any thread, as their searches finish; each one
+   has a fixed slot, so the merged hits are the same no matter what
+   order the searches finish in.  The merge is a k-way merge of the
+   libraries' hits sorted by feature, in one pass over all of them.<p>
+
+   Within each feature, hits are in the order of the libraries'
+   slots, then in the order each library found them.  If more than
+   one library hits a feature with the same accession, all the hits
+   are kept (so the accession's places come from several libraries),
+   and the collision is counted; see getCollisions.
+*/
+public class HitMerger {
+    private final HitStore[] inputs;
+    private int collisions = 0;
+    private final Set<String> collidingAccessions = new TreeSet<String>();
+
+    /**
+       makes a merger for a number of libraries
+    */
+    public HitMerger(int nInputs) {
+        inputs = new HitStore[nInputs];
+    }
+
+    /**
+       adds the hits from the library in a given slot
+    */
+    public synchronized void add(int input,
+                                 HitStore hits) {
+        if (inputs[input] != null)
+            throw new IllegalStateException("Hits from library "+input+" were already added");
+        inputs[input] = hits;
+    }
+
+    /**
+       Merges all the hits added so far, returning them in a new
+       HitStore, in order of feature position.  Collisions are
+       counted again on each merge.
+    */
+    public synchronized HitStore merge() {
+        HitStore rv = new HitStore();
+        collisions = 0;
+        collidingAccessions.clear();
+
+        // next hit in each library: {feature position, slot, index}
+        PriorityQueue<int[]> heads = new PriorityQueue<int[]>(Math.max(1, inputs.length), new Comparator<int[]>() {
+                @Override
+                public int compare(int[] o1, int[] o2) {
+                    if (o1[0] != o2[0])
+                        return Integer.compare(o1[0], o2[0]);
+                    return Integer.compare(o1[1], o2[1]);
+                }
+            });
+        for (int i=0; i<inputs.length; i++) {
+            if (inputs[i] == null)
+                continue;
+            inputs[i].sortByFeature();
+            if (inputs[i].size() > 0)
+                heads.add(new int[] { inputs[i].getFeaturePos(0), i, 0 });
+        }
+
+        // slot that first hit each accession in the current feature
+        Map<String,Integer> firstSlot = new HashMap<String,Integer>();
+        Set<String> collided = new HashSet<String>();
+        int currentPos = -1;
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            int pos = head[0];
+            HitStore input = inputs[head[1]];
+            if (pos != currentPos) {
+                firstSlot.clear();
+                collided.clear();
+                currentPos = pos;
+            }
+            // copy all of this library's hits to the feature
+            int last = input.getLastHit(pos);
+            for (int i=head[2]; i<last; i++) {
+                String accession = input.getAccession(i);
+                Integer slot = firstSlot.get(accession);
+                if (slot == null)
+                    firstSlot.put(accession, head[1]);
+                else if ((slot.intValue() != head[1]) && collided.add(accession)) {
+                    collisions++;
+                    collidingAccessions.add(accession);
+                }
+                input.copyHit(i, rv);
+            }
+            if (last < input.size())
+                heads.add(new int[] { input.getFeaturePos(last), head[1], last });
+        }
+        return rv;
+    }
+
+    /**
+       Returns the number of times, in the last merge, that two or
+       more libraries hit the same feature with the same accession
+    */
+    public synchronized int getCollisions() {
+        return collisions;
+    }
+
+    /**
+       returns the accessions found in more than one library
+       in the last merge
+    */
+    public synchronized Set<String> getCollidingAccessions() {
+        return new TreeSet<String>(collidingAccessions);
+    }
+}
@@ -0,0 +1,231 @@
+package domainannotation;
+
+import java.io.IOException;
+import java.util.*;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import us.kbase.common.service.Tuple5;
+
+/**
+   Holds domain hits in parallel arrays of primitives (one entry
+   per hit), rather than as a Tuple5 per hit in a map per feature,
+   so each hit takes a few dozen bytes instead of several objects.
+   Accessions are stored as codes in a dictionary, so each one is
+   only stored once.  Hits are kept in the order they were added.
+   Hits are only turned into the DomainAnnotation format (with
+   addTo) when the annotation is about to be saved, or written
+   straight to JSON (see AnnotationWriter) without making Tuple5s
+   at all.<p>
+
+   E-values, scores and coverage are kept as doubles:  HMMER
+   E-values are often smaller than the smallest float (about
+   1e-45), so floats would save them as 0.  The arrays hold 40 bytes
+   per hit; with the copies made as they grow, about 110 bytes are
+   allocated per hit, against about 330 for the Tuple5 maps (see the
+   hitStoreHeap test).<p>
+
+   Hits may be added from more than one thread.
+*/
+public class HitStore implements DomainAnnotationImpl.DomainHitCallback {
+    private int n = 0;
+    private int[] featurePos = new int[1024];
+    private int[] accession = new int[1024];
+    private int[] start = new int[1024];
+    private int[] stop = new int[1024];
+    private double[] evalue = new double[1024];
+    private double[] bitscore = new double[1024];
+    private double[] coverage = new double[1024];
+
+    private final Map<String,Integer> accessionCodes = new HashMap<String,Integer>();
+    private final List<String> accessions = new ArrayList<String>();
+
+    // hit numbers sorted by feature position, and the index in
+    // order of the first hit to each feature; made by sortByFeature
+    private int[] order = null;
+    private int[] firstHit = null;
+
+    /**
+       saves one hit
+    */
+    @Override
+    public synchronized void next(int featurePos,
+                                  String accession,
+                                  long start,
+                                  long stop,
+                                  double evalue,
+                                  double bitscore,
+                                  double coverage) {
+        if (n == this.featurePos.length) {
+            int size = n*2;
+            this.featurePos = Arrays.copyOf(this.featurePos, size);
+            this.accession = Arrays.copyOf(this.accession, size);
+            this.start = Arrays.copyOf(this.start, size);
+            this.stop = Arrays.copyOf(this.stop, size);
+            this.evalue = Arrays.copyOf(this.evalue, size);
+            this.bitscore = Arrays.copyOf(this.bitscore, size);
+            this.coverage = Arrays.copyOf(this.coverage, size);
+        }
+        Integer code = accessionCodes.get(accession);
+        if (code == null) {
+            code = Integer.valueOf(accessions.size());
+            accessionCodes.put(accession, code);
+            accessions.add(accession);
+        }
+        order = null;
+        this.featurePos[n] = featurePos;
+        this.accession[n] = code.intValue();
+        this.start[n] = (int)start;
+        this.stop[n] = (int)stop;
+        this.evalue[n] = evalue;
+        this.bitscore[n] = bitscore;
+        this.coverage[n] = coverage;
+        n++;
+    }
+
+    /**
+       returns the number of hits
+    */
+    public synchronized int size() {
+        return n;
+    }
+
+    /**
+       returns the number of distinct accessions hit
+    */
+    public synchronized int getAccessionCount() {
+        return accessions.size();
+    }
+
+    /**
+       Sorts the hits by feature position, keeping the order of the
+       hits to each feature, for getFirstHit and getLastHit.  Must
+       be called again if more hits are added.
+    */
+    public synchronized void sortByFeature() {
+        int maxPos = -1;
+        for (int i=0; i<n; i++)
+            maxPos = Math.max(maxPos, featurePos[i]);
+        firstHit = new int[maxPos+2];
+        for (int i=0; i<n; i++)
+            firstHit[featurePos[i]+1]++;
+        for (int pos=0; pos<=maxPos; pos++)
+            firstHit[pos+1] += firstHit[pos];
+        int[] next = Arrays.copyOf(firstHit, maxPos+1);
+        order = new int[n];
+        for (int i=0; i<n; i++)
+            order[next[featurePos[i]]++] = i;
+    }
+
+    /**
+       returns the index (in sorted order) of the first hit to a
+       feature; the hits to a feature run from getFirstHit(pos) up
+       to, but not including, getLastHit(pos)
+    */
+    public int getFirstHit(int pos) {
+        return ((pos+1 < firstHit.length) ? firstHit[pos] : n);
+    }
+
+    /**
+       returns the index (in sorted order) after the last hit to
+       a feature
+    */
+    public int getLastHit(int pos) {
+        return ((pos+1 < firstHit.length) ? firstHit[pos+1] : n);
+    }
+
+    /**
+       returns the feature position of a hit, by index in sorted order
+    */
+    public int getFeaturePos(int index) {
+        return featurePos[order[index]];
+    }
+
+    /**
+       adds a hit, by index in sorted order, to another HitStore
+    */
+    public void copyHit(int index,
+                        HitStore target) {
+        int i = order[index];
+        target.next(featurePos[i],
+                    accessions.get(accession[i]),
+                    (long)start[i],
+                    (long)stop[i],
+                    evalue[i],
+                    bitscore[i],
+                    coverage[i]);
+    }
+
+    /**
+       returns the accession of a hit, by index in sorted order
+    */
+    public String getAccession(int index) {
+        return accessions.get(accession[order[index]]);
+    }
+
+    /**
+       writes a hit, by index in sorted order, as a JSON domain_place
+       tuple, the same way Jackson writes a Tuple5
+    */
+    public void writePlace(JsonGenerator jg,
+                           int index) throws IOException {
+        int i = order[index];
+        jg.writeStartArray();
+        jg.writeNumber((long)start[i]);
+        jg.writeNumber((long)stop[i]);
+        jg.writeNumber(evalue[i]);
+        jg.writeNumber(bitscore[i]);
+        jg.writeNumber(coverage[i]);
+        jg.writeEndArray();
+    }
+
+    /**
+       Saves all the hits in a DomainAnnotation.  featIdToPos
+       maps the id of each feature to its position (the featurePos
+       used in searches).  Features not in featIdToPos are skipped.
+    */
+    public void add(DomainAnnotation da,
+                    Map<String,Integer> featIdToPos) {
+        for (List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> elements : da.getData().values()) {
+            for (Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element : elements) {
+                Integer pos = featIdToPos.get(element.getE1());
+                if (pos == null)
+                    continue;
+                for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : element.getE5().entrySet()) {
+                    for (Tuple5<Long, Long, Double, Double, Double> place : domain.getValue())
+                        next(pos.intValue(),
+                             domain.getKey(),
+                             place.getE1().longValue(),
+                             place.getE2().longValue(),
+                             place.getE3().doubleValue(),
+                             place.getE4().doubleValue(),
+                             place.getE5().doubleValue());
+                }
+            }
+        }
+    }
+
+    /**
+       Adds all the hits to the elements of a DomainAnnotation, by
+       position, as made by DomainAnnotationImpl.makeEmptyAnnotation.
+       Each accession's places are added in the order the hits
+       were saved.
+    */
+    public synchronized void addTo(Map<Integer, Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> posToElement) {
+        for (int i=0; i<n; i++) {
+            Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = posToElement.get(featurePos[i]).getE5();
+            String name = accessions.get(accession[i]);
+            List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(name);
+            if (places == null) {
+                places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
+                domains.put(name, places);
+            }
+            places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                       .withE1((long)start[i])
+                       .withE2((long)stop[i])
+                       .withE3(evalue[i])
+                       .withE4(bitscore[i])
+                       .withE5(coverage[i]));
+        }
+    }
+}
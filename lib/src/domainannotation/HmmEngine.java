@@ -0,0 +1,804 @@
+package domainannotation;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.strbio.IO;
+import org.strbio.util.StringUtil;
+
+/**
+   Scores proteins against a library of HMMER3 profile HMMs without
+   running hmmscan, for jobs too small to be worth starting a process
+   and loading a pressed database.  Models are read from the same
+   ASCII .hmm file that hmmpress uses, and kept in memory for the
+   lifetime of the process.<p>
+
+   Each protein is scored like hmmscan --cut_tc scores it, in local
+   multihit mode: the MSV, Viterbi and Forward filters, then a
+   Forward score for the whole sequence, which must pass the model's
+   sequence TC threshold.  Only proteins that pass are traced back
+   (with Viterbi) to find the domains; the filters keep just two rows
+   of each DP matrix, and the traceback keeps one byte per cell.  Each
+   domain is rescored with Forward over its envelope, as
+   hmmscan does; domains must pass the domain TC threshold.  E-values
+   come from the model's Forward statistics, with the number of
+   models that passed the sequence threshold (hmmscan's domZ) as the
+   search space, like hmmscan's i-Evalues.  Unlike hmmscan, there is
+   no null2 (composition bias) correction, and domain boundaries are
+   those of the Viterbi alignment, so scores of biased sequences and
+   boundaries of some domains differ slightly from hmmscan's.
+*/
+public class HmmEngine {
+    /**
+       HMMER3 background amino acid frequencies, in the
+       order ACDEFGHIKLMNPQRSTVWY
+    */
+    private static final double[] background = {
+        0.0787945, 0.0151600, 0.0535222, 0.0668298, 0.0397062,
+        0.0695071, 0.0229198, 0.0590092, 0.0594422, 0.0963728,
+        0.0237718, 0.0414386, 0.0482904, 0.0395639, 0.0540978,
+        0.0683364, 0.0540687, 0.0673417, 0.0114135, 0.0304133
+    };
+
+    private static final String alphabet = "ACDEFGHIKLMNPQRSTVWY";
+
+    /**
+       residue codes for each ASCII character; -1 for residues
+       that aren't one of the standard 20, which score 0
+    */
+    private static final byte[] residueCodes = new byte[128];
+    static {
+        Arrays.fill(residueCodes, (byte)-1);
+        for (int i=0; i<alphabet.length(); i++) {
+            residueCodes[alphabet.charAt(i)] = (byte)i;
+            residueCodes[Character.toLowerCase(alphabet.charAt(i))] = (byte)i;
+        }
+    }
+
+    /**
+       MSV, Viterbi and Forward filter thresholds, as in hmmscan
+       (--F1, --F2 and --F3)
+    */
+    private static final double msvPValue = 0.02;
+    private static final double viterbiPValue = 0.001;
+    private static final double forwardPValue = 1e-5;
+
+    /**
+       table of log(1 + exp(-x)) for adding log probabilities,
+       at intervals of 1/logSumScale, as in HMMER's p7_FLogsum
+    */
+    private static final int logSumScale = 1000;
+    private static final float[] logSumTable = new float[16000];
+    static {
+        for (int i=0; i<logSumTable.length; i++)
+            logSumTable[i] = (float)Math.log(1.0 + Math.exp(-(double)i / logSumScale));
+    }
+
+    private static final float minusInf = Float.NEGATIVE_INFINITY;
+
+    /**
+       traceback matrices bigger than this (in cells) are released
+       after each protein, rather than kept for the next one
+    */
+    private static final int keptTracebackCells = 1 << 20;
+
+    /**
+       libraries already loaded, by file name
+    */
+    private static final Map<String,HmmEngine> libraries = new ConcurrentHashMap<String,HmmEngine>();
+
+    private final List<Model> models;
+
+    /**
+       One model, as a search profile:  scores are log-odds (in
+       nats) against the background.  Transition arrays are indexed
+       by the node the transition starts from.
+    */
+    private static class Model {
+        String accession;
+        int length;
+        double tcSequence;
+        double tcDomain;
+        double msvMu, msvLambda;
+        double viterbiMu, viterbiLambda;
+        double forwardTau, forwardLambda;
+
+        // match emission scores, [node 1..M][residue]
+        float[][] matchScores;
+
+        float[] tMM, tMI, tMD, tIM, tII, tDM, tDD;
+
+        // local entry scores, [node 1..M]
+        float[] tBM;
+    }
+
+    /**
+       loads all the models from an ASCII HMMER3 file
+    */
+    private HmmEngine(File hmmFile) throws Exception {
+        models = new ArrayList<Model>();
+        BufferedReader infile = IO.openReader(hmmFile.getPath());
+        try {
+            Model m;
+            while ((m = readModel(infile)) != null)
+                models.add(m);
+        }
+        finally {
+            infile.close();
+        }
+    }
+
+    /**
+       Returns the engine for an HMM library file, loading it
+       if necessary
+    */
+    public static HmmEngine get(File hmmFile) throws Exception {
+        String key = hmmFile.getCanonicalPath();
+        HmmEngine rv = libraries.get(key);
+        if (rv == null) {
+            synchronized (libraries) {
+                rv = libraries.get(key);
+                if (rv == null) {
+                    rv = new HmmEngine(hmmFile);
+                    libraries.put(key, rv);
+                }
+            }
+        }
+        return rv;
+    }
+
+    /**
+       converts a value from an HMMER3 file (negative natural log
+       of a probability) to a log probability
+    */
+    private static float logProb(String value) {
+        if (value.equals("*"))
+            return minusInf;
+        return -Float.parseFloat(value);
+    }
+
+    /**
+       Reads the next model from a file, returning null at the end
+       of the file.
+    */
+    private static Model readModel(BufferedReader infile) throws Exception {
+        Model m = new Model();
+        String name = null;
+        boolean hasTc = false;
+        String buffer;
+        while ((buffer = infile.readLine()) != null) {
+            if (buffer.startsWith("NAME "))
+                name = buffer.substring(6).trim();
+            else if (buffer.startsWith("ACC "))
+                m.accession = buffer.substring(6).trim();
+            else if (buffer.startsWith("LENG "))
+                m.length = StringUtil.atoi(buffer.substring(6));
+            else if (buffer.startsWith("TC ")) {
+                StringTokenizer st = new StringTokenizer(buffer.substring(3), " \t;");
+                m.tcSequence = Double.parseDouble(st.nextToken());
+                m.tcDomain = Double.parseDouble(st.nextToken());
+                hasTc = true;
+            }
+            else if (buffer.startsWith("STATS LOCAL ")) {
+                StringTokenizer st = new StringTokenizer(buffer.substring(12));
+                String type = st.nextToken();
+                double mu = Double.parseDouble(st.nextToken());
+                double lambda = Double.parseDouble(st.nextToken());
+                if (type.equals("MSV")) {
+                    m.msvMu = mu;
+                    m.msvLambda = lambda;
+                }
+                else if (type.equals("VITERBI")) {
+                    m.viterbiMu = mu;
+                    m.viterbiLambda = lambda;
+                }
+                else if (type.equals("FORWARD")) {
+                    m.forwardTau = mu;
+                    m.forwardLambda = lambda;
+                }
+            }
+            else if (buffer.startsWith("HMM "))
+                break;
+        }
+        if (buffer == null)
+            return null;
+        if (m.accession == null)
+            m.accession = name;
+        if (!hasTc)
+            throw new IllegalStateException("Model "+m.accession+" has no TC thresholds");
+
+        int len = m.length;
+        m.matchScores = new float[len+1][20];
+        m.tMM = new float[len+1];
+        m.tMI = new float[len+1];
+        m.tMD = new float[len+1];
+        m.tIM = new float[len+1];
+        m.tII = new float[len+1];
+        m.tDM = new float[len+1];
+        m.tDD = new float[len+1];
+
+        // skip transition header, and optional COMPO line
+        infile.readLine();
+        buffer = infile.readLine();
+        if (buffer.trim().startsWith("COMPO"))
+            buffer = infile.readLine();
+        // buffer is now node 0 insert emissions; insert
+        // emissions always score 0
+        readTransitions(m, 0, infile.readLine());
+        for (int k=1; k<=len; k++) {
+            StringTokenizer st = new StringTokenizer(infile.readLine());
+            st.nextToken(); // node number
+            for (int a=0; a<20; a++)
+                m.matchScores[k][a] = (float)(logProb(st.nextToken()) - Math.log(background[a]));
+            infile.readLine(); // insert emissions
+            readTransitions(m, k, infile.readLine());
+        }
+        while (((buffer = infile.readLine()) != null) &&
+               !buffer.startsWith("//"))
+            ;
+
+        // local entry:  each node is entered in proportion to the
+        // chance it is occupied, as in hmmscan
+        double[] occupancy = new double[len+1];
+        occupancy[1] = Math.exp(m.tMI[0]) + Math.exp(m.tMM[0]);
+        for (int k=2; k<=len; k++)
+            occupancy[k] = (occupancy[k-1] * (Math.exp(m.tMM[k-1]) + Math.exp(m.tMI[k-1])) +
+                            (1.0 - occupancy[k-1]) * Math.exp(m.tDM[k-1]));
+        double z = 0.0;
+        for (int k=1; k<=len; k++)
+            z += occupancy[k] * (len-k+1);
+        m.tBM = new float[len+1];
+        for (int k=1; k<=len; k++)
+            m.tBM[k] = (float)Math.log(occupancy[k] / z);
+
+        return m;
+    }
+
+    private static void readTransitions(Model m,
+                                        int k,
+                                        String buffer) {
+        StringTokenizer st = new StringTokenizer(buffer);
+        m.tMM[k] = logProb(st.nextToken());
+        m.tMI[k] = logProb(st.nextToken());
+        m.tMD[k] = logProb(st.nextToken());
+        m.tIM[k] = logProb(st.nextToken());
+        m.tII[k] = logProb(st.nextToken());
+        m.tDM[k] = logProb(st.nextToken());
+        m.tDD[k] = logProb(st.nextToken());
+    }
+
+    /**
+       returns the number of models in the library
+    */
+    public int getModelCount() {
+        return models.size();
+    }
+
+    /**
+       Returns the trusted cutoff (TC sequence score threshold)
+       of each model, by accession
+    */
+    public Map<String,Double> getTrustedCutoffs() {
+        Map<String,Double> rv = new HashMap<String,Double>();
+        for (Model m : models)
+            rv.put(m.accession, m.tcSequence);
+        return rv;
+    }
+
+    /**
+       Returns the consensus sequence of each model, by accession:
+       the most likely residue at each node
+    */
+    public Map<String,String> getConsensusSequences() {
+        Map<String,String> rv = new HashMap<String,String>();
+        for (Model m : models) {
+            StringBuilder consensus = new StringBuilder(m.length);
+            for (int k=1; k<=m.length; k++) {
+                int best = 0;
+                for (int a=1; a<20; a++)
+                    if (m.matchScores[k][a] + Math.log(background[a]) >
+                        m.matchScores[k][best] + Math.log(background[best]))
+                        best = a;
+                consensus.append(alphabet.charAt(best));
+            }
+            rv.put(m.accession, consensus.toString());
+        }
+        return rv;
+    }
+
+    /**
+       Gumbel survival function, without losing precision for
+       small P-values
+    */
+    private static double gumbelSurvival(double x,
+                                         double mu,
+                                         double lambda) {
+        double y = Math.exp(-lambda * (x - mu));
+        if (y < 1e-7)
+            return y;
+        return 1.0 - Math.exp(-y);
+    }
+
+    /**
+       exponential tail survival function, used for Forward scores
+    */
+    private static double expSurvival(double x,
+                                      double tau,
+                                      double lambda) {
+        if (x < tau)
+            return 1.0;
+        return Math.exp(-lambda * (x - tau));
+    }
+
+    /**
+       adds two log probabilities
+    */
+    private static float logSum(float a,
+                                float b) {
+        if (a < b) {
+            float t = a;
+            a = b;
+            b = t;
+        }
+        if ((b == minusInf) || (a - b >= 16.0f))
+            return a;
+        return a + logSumTable[(int)((a - b) * logSumScale)];
+    }
+
+    /**
+       null model score (in nats) of a sequence of length l
+    */
+    private static double nullScore(int l) {
+        return l * Math.log((double)l / (l+1)) + Math.log(1.0 / (l+1));
+    }
+
+    /**
+       DP matrices, reused for all the models and proteins
+       searched by one thread
+    */
+    private static class Workspace {
+        // two rows of each Viterbi and Forward matrix
+        float[] mx, ix, dx;
+        float[] fm, fi, fd;
+        // traceback pointers, one byte per cell:  the state the
+        // match state came from in bits 0-1, and whether the insert
+        // and delete states came from an insert or delete in bits
+        // 2 and 3
+        byte[] tb;
+        float[] xB, xE, xJ, xC;
+        int[] eNode;
+        boolean[] eFromD, bFromJ, jFromE, cFromE;
+
+        void ensure(int l, int m) {
+            if ((mx == null) || (mx.length < 2*(m+1))) {
+                mx = new float[2*(m+1)];
+                ix = new float[2*(m+1)];
+                dx = new float[2*(m+1)];
+                fm = new float[2*(m+1)];
+                fi = new float[2*(m+1)];
+                fd = new float[2*(m+1)];
+            }
+            if ((xB == null) || (xB.length < l+1)) {
+                xB = new float[l+1];
+                xE = new float[l+1];
+                xJ = new float[l+1];
+                xC = new float[l+1];
+                eNode = new int[l+1];
+                eFromD = new boolean[l+1];
+                bFromJ = new boolean[l+1];
+                jFromE = new boolean[l+1];
+                cFromE = new boolean[l+1];
+            }
+        }
+
+        void ensureTraceback(int l,
+                             int m,
+                             long maxCells) {
+            long cells = (long)(l+1) * (long)(m+1);
+            if ((cells > maxCells) || (cells > Integer.MAX_VALUE))
+                throw new IllegalStateException("Traceback of a protein of length "+l+" against a model of length "+m+" is too big for HmmEngine");
+            if ((tb == null) || (tb.length < cells))
+                tb = new byte[(int)cells];
+        }
+
+        /**
+           releases buffers too big to keep between proteins
+        */
+        void trim() {
+            if ((tb != null) && (tb.length > keptTracebackCells))
+                tb = null;
+        }
+    }
+
+    /**
+       MSV filter score of a protein, in nats
+    */
+    private static double msvScore(Model m,
+                                   byte[] seq,
+                                   float[] row) {
+        int len = m.length;
+        int l = seq.length;
+        float loop = (float)Math.log((double)l / (l+3));
+        float move = (float)Math.log(3.0 / (l+3));
+        float half = (float)Math.log(0.5);
+        float entry = (float)Math.log(2.0 / (len * (len+1.0)));
+        Arrays.fill(row, 0, len+1, minusInf);
+        float xN = 0.0f;
+        float xJ = minusInf;
+        float xC = minusInf;
+        float xB = move;
+        for (int i=1; i<=l; i++) {
+            int a = seq[i-1];
+            float xE = minusInf;
+            float bEntry = xB + entry;
+            // go backwards, so row[k-1] is still from row i-1
+            for (int k=len; k>=1; k--) {
+                float sc = Math.max(row[k-1], bEntry);
+                if (a >= 0)
+                    sc += m.matchScores[k][a];
+                row[k] = sc;
+                if (sc > xE)
+                    xE = sc;
+            }
+            xJ = Math.max(xJ + loop, xE + half);
+            xC = Math.max(xC + loop, xE + half);
+            xN = xN + loop;
+            xB = Math.max(xN + move, xJ + move);
+        }
+        return xC + move;
+    }
+
+    /**
+       Forward score (in nats) of part of a protein, l residues
+       starting at from, in local multihit mode, with the length
+       model set for l residues
+    */
+    private static double forwardScore(Model m,
+                                       byte[] seq,
+                                       int from,
+                                       int l,
+                                       Workspace w) {
+        int len = m.length;
+        int width = len+1;
+        float loop = (float)Math.log((double)l / (l+3));
+        float move = (float)Math.log(3.0 / (l+3));
+        float half = (float)Math.log(0.5);
+        float[] fm = w.fm, fi = w.fi, fd = w.fd;
+        Arrays.fill(fm, 0, width, minusInf);
+        Arrays.fill(fi, 0, width, minusInf);
+        Arrays.fill(fd, 0, width, minusInf);
+        float xN = 0.0f;
+        float xJ = minusInf;
+        float xC = minusInf;
+        float xB = move;
+        for (int i=1; i<=l; i++) {
+            int a = seq[from+i-1];
+            int row = (i % 2) * width;
+            int prev = width - row;
+            fm[row] = fi[row] = fd[row] = minusInf;
+            float xE = minusInf;
+            for (int k=1; k<=len; k++) {
+                float sc = logSum(logSum(fm[prev+k-1] + m.tMM[k-1],
+                                         fi[prev+k-1] + m.tIM[k-1]),
+                                  logSum(fd[prev+k-1] + m.tDM[k-1],
+                                         xB + m.tBM[k]));
+                if (a >= 0)
+                    sc += m.matchScores[k][a];
+                fm[row+k] = sc;
+                if (k < len)
+                    fi[row+k] = logSum(fm[prev+k] + m.tMI[k],
+                                       fi[prev+k] + m.tII[k]);
+                else
+                    fi[row+k] = minusInf;
+                if (k > 1)
+                    fd[row+k] = logSum(fm[row+k-1] + m.tMD[k-1],
+                                       fd[row+k-1] + m.tDD[k-1]);
+                else
+                    fd[row+k] = minusInf;
+                xE = logSum(xE, logSum(fm[row+k], fd[row+k]));
+            }
+            xJ = logSum(xJ + loop, xE + half);
+            xC = logSum(xC + loop, xE + half);
+            xN += loop;
+            xB = logSum(xN, xJ) + move;
+        }
+        return xC + move;
+    }
+
+    /**
+       Viterbi score (in nats) of a protein, in local multihit mode.
+       Only two rows of scores are kept.  If traceback is true, the
+       traceback pointers are saved in w.tb, which must have a cell
+       for each residue and node; the special states for each row
+       are always saved.
+    */
+    private static double viterbi(Model m,
+                                  byte[] seq,
+                                  Workspace w,
+                                  boolean traceback) {
+        int len = m.length;
+        int l = seq.length;
+        float loop = (float)Math.log((double)l / (l+3));
+        float move = (float)Math.log(3.0 / (l+3));
+        float half = (float)Math.log(0.5);
+        int width = len+1;
+        float[] mx = w.mx, ix = w.ix, dx = w.dx;
+        byte[] tb = w.tb;
+        Arrays.fill(mx, 0, width, minusInf);
+        Arrays.fill(ix, 0, width, minusInf);
+        Arrays.fill(dx, 0, width, minusInf);
+        float xN = 0.0f;
+        w.xB[0] = move;
+        w.xE[0] = w.xJ[0] = w.xC[0] = minusInf;
+        for (int i=1; i<=l; i++) {
+            int a = seq[i-1];
+            int row = (i % 2) * width;
+            int prev = width - row;
+            int cell = i*width;
+            mx[row] = ix[row] = dx[row] = minusInf;
+            float xE = minusInf;
+            int eNode = 0;
+            boolean eFromD = false;
+            float xB = w.xB[i-1];
+            for (int k=1; k<=len; k++) {
+                // match
+                float best = xB + m.tBM[k];
+                int from = 3;
+                float sc = mx[prev+k-1] + m.tMM[k-1];
+                if (sc > best) { best = sc; from = 0; }
+                sc = ix[prev+k-1] + m.tIM[k-1];
+                if (sc > best) { best = sc; from = 1; }
+                sc = dx[prev+k-1] + m.tDM[k-1];
+                if (sc > best) { best = sc; from = 2; }
+                if (a >= 0)
+                    best += m.matchScores[k][a];
+                mx[row+k] = best;
+                int pointers = from;
+
+                // insert; insert emissions score 0, and there's
+                // no insert state in the last node
+                if (k < len) {
+                    best = mx[prev+k] + m.tMI[k];
+                    sc = ix[prev+k] + m.tII[k];
+                    if (sc > best) { best = sc; pointers |= 4; }
+                    ix[row+k] = best;
+                }
+                else
+                    ix[row+k] = minusInf;
+
+                // delete
+                if (k > 1) {
+                    best = mx[row+k-1] + m.tMD[k-1];
+                    sc = dx[row+k-1] + m.tDD[k-1];
+                    if (sc > best) { best = sc; pointers |= 8; }
+                    dx[row+k] = best;
+                }
+                else
+                    dx[row+k] = minusInf;
+
+                if (traceback)
+                    tb[cell+k] = (byte)pointers;
+
+                // local exit from any match or delete state
+                if (mx[row+k] > xE) { xE = mx[row+k]; eNode = k; eFromD = false; }
+                if (dx[row+k] > xE) { xE = dx[row+k]; eNode = k; eFromD = true; }
+            }
+            w.xE[i] = xE;
+            w.eNode[i] = eNode;
+            w.eFromD[i] = eFromD;
+
+            float jLoop = w.xJ[i-1] + loop;
+            w.jFromE[i] = (xE + half > jLoop);
+            w.xJ[i] = Math.max(jLoop, xE + half);
+
+            float cLoop = w.xC[i-1] + loop;
+            w.cFromE[i] = (xE + half > cLoop);
+            w.xC[i] = Math.max(cLoop, xE + half);
+
+            xN += loop;
+            w.bFromJ[i] = (w.xJ[i] > xN);
+            w.xB[i] = Math.max(xN, w.xJ[i]) + move;
+        }
+        return w.xC[l] + move;
+    }
+
+    /**
+       Scores one protein against one model.  Returns null if the
+       protein doesn't pass the filters and the model's sequence TC
+       threshold; otherwise, returns each domain that passes the
+       domain TC threshold, in order, as {start, stop, model start,
+       model stop}, and its score in bits.  The traceback may use up
+       to maxCells cells.
+    */
+    private static List<Object[]> searchModel(Model m,
+                                              byte[] seq,
+                                              Workspace w,
+                                              long maxCells) throws Exception {
+        int len = m.length;
+        int l = seq.length;
+        double ln2 = Math.log(2.0);
+        double nullSc = nullScore(l);
+
+        // MSV filter
+        w.ensure(l, len);
+        double msvBits = (msvScore(m, seq, w.mx) - nullSc) / ln2;
+        if (gumbelSurvival(msvBits, m.msvMu, m.msvLambda) > msvPValue)
+            return null;
+
+        // Viterbi filter
+        double viterbiBits = (viterbi(m, seq, w, false) - nullSc) / ln2;
+        if (gumbelSurvival(viterbiBits, m.viterbiMu, m.viterbiLambda) > viterbiPValue)
+            return null;
+
+        // Forward score of the whole sequence, which the TC
+        // thresholds were calibrated on
+        double seqBits = (forwardScore(m, seq, 0, l, w) - nullSc) / ln2;
+        if ((expSurvival(seqBits, m.forwardTau, m.forwardLambda) > forwardPValue) ||
+            (seqBits < m.tcSequence))
+            return null;
+
+        // Viterbi again, saving the traceback, to find the domains,
+        // last first
+        w.ensureTraceback(l, len, maxCells);
+        viterbi(m, seq, w, true);
+        int width = len+1;
+        byte[] tb = w.tb;
+        List<int[]> domains = new ArrayList<int[]>();
+        int i = l;
+        while (true) {
+            // in C or J state at row i; find where E was entered
+            if (domains.isEmpty()) {
+                while ((i > 0) && !w.cFromE[i])
+                    i--;
+            }
+            else {
+                while ((i > 0) && !w.jFromE[i])
+                    i--;
+            }
+            if (i == 0)
+                break;
+            int iEnd = i;
+            int k = w.eNode[i];
+            int kEnd = k;
+            int state = (w.eFromD[i] ? 2 : 0);
+            int iStart = i;
+            int kStart = k;
+            // follow match/insert/delete states back to B
+            while (true) {
+                int cell = i*width+k;
+                if (state == 0) {
+                    iStart = i;
+                    kStart = k;
+                    int from = tb[cell] & 3;
+                    if (from == 3) {
+                        i--;
+                        break;
+                    }
+                    state = from;
+                    i--;
+                    k--;
+                }
+                else if (state == 1) {
+                    state = ((tb[cell] & 4)==0 ? 0 : 1);
+                    i--;
+                }
+                else {
+                    state = ((tb[cell] & 8)==0 ? 0 : 2);
+                    k--;
+                }
+            }
+            // now in B at row i
+            domains.add(new int[] { iStart, iEnd, kStart, kEnd });
+            if (!w.bFromJ[i])
+                break;
+        }
+
+        // as in hmmscan, each domain is rescored by Forward over
+        // its envelope, with the length model set for the envelope,
+        // and the rest of the sequence scored as N, C or J
+        List<Object[]> rv = new ArrayList<Object[]>();
+        for (int d=domains.size()-1; d>=0; d--) {
+            int[] domain = domains.get(d);
+            int envLength = domain[1] - domain[0] + 1;
+            double envSc = forwardScore(m, seq, domain[0]-1, envLength, w);
+            double bits = (envSc + (l - envLength) * Math.log((double)l / (l+3)) - nullSc) / ln2;
+            if (bits >= m.tcDomain)
+                rv.add(new Object[] { domain, Double.valueOf(bits) });
+        }
+        return rv;
+    }
+
+    /**
+       Searches a set of proteins (by position) against all the
+       models in the library, in a given number of threads, passing
+       each hit to a callback.  As in hmmscan output, each protein's
+       hits are grouped by model, and ordered by position within
+       each model.  If prefilter is not null, each protein is only
+       scored against its candidate models.  Each thread's traceback
+       matrix may use up to maxCells cells (bytes), which must be at
+       least (length+1)*(model length+1) for the longest protein
+       and model.  The callback must be thread safe.
+    */
+    public void search(Map<Integer,String> seqs,
+                       final Map<String,Long> modelNameToLength,
+                       final KmerIndex prefilter,
+                       final long maxCells,
+                       int threads,
+                       final DomainAnnotationImpl.DomainHitCallback callback) throws Exception {
+        for (Model m : models)
+            if (!modelNameToLength.containsKey(m.accession))
+                throw new IllegalStateException("No recognized domain for HMM "+m.accession);
+
+        final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return new Workspace();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Object>> searches = new ArrayList<Future<Object>>();
+            for (final Map.Entry<Integer,String> entry : seqs.entrySet()) {
+                searches.add(pool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            String s = entry.getValue();
+                            byte[] seq = new byte[s.length()];
+                            for (int i=0; i<seq.length; i++) {
+                                char c = s.charAt(i);
+                                seq[i] = (c < 128 ? residueCodes[c] : -1);
+                            }
+                            Workspace w = workspaces.get();
+                            Set<String> candidates = (prefilter==null ? null : prefilter.getCandidates(s));
+                            List<Model> hitModels = new ArrayList<Model>();
+                            List<List<Object[]>> hitDomains = new ArrayList<List<Object[]>>();
+                            for (Model m : models) {
+                                if ((candidates != null) && !candidates.contains(m.accession))
+                                    continue;
+                                List<Object[]> domains = searchModel(m, seq, w, maxCells);
+                                if (domains != null) {
+                                    hitModels.add(m);
+                                    hitDomains.add(domains);
+                                }
+                            }
+                            w.trim();
+                            // i-Evalues are per model that passed
+                            // the sequence threshold, as in hmmscan
+                            int domZ = hitModels.size();
+                            for (int h=0; h<domZ; h++) {
+                                Model m = hitModels.get(h);
+                                double modelLength = modelNameToLength.get(m.accession).doubleValue();
+                                for (Object[] hit : hitDomains.get(h)) {
+                                    int[] domain = (int[])hit[0];
+                                    double bits = ((Double)hit[1]).doubleValue();
+                                    callback.next(entry.getKey(),
+                                                  m.accession,
+                                                  (long)domain[0],
+                                                  (long)domain[1],
+                                                  domZ * expSurvival(bits, m.forwardTau, m.forwardLambda),
+                                                  bits,
+                                                  (double)(domain[3] - domain[2] + 1) / modelLength);
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Object> f : searches) {
+                try {
+                    f.get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception)
+                        throw (Exception)cause;
+                    throw e;
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+}
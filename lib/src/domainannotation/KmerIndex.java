@@ -0,0 +1,249 @@
+package domainannotation;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   An index of short words (k-mers) in the consensus sequences of
+   the models in a domain library, used to pick the few models each
+   protein could plausibly hit before scoring it against them.
+   Words are taken in a reduced amino acid alphabet, so conservative
+   substitutions still match.  A model is a candidate for a protein
+   if two non-overlapping words match on the same diagonal, within
+   a short window, as in BLAST's two-hit seeding.<p>
+
+   The index is built by DomainModelLibPreparation, and saved with
+   the library's other files, under the name of the library file
+   plus ".kmers".  Candidates are a filter, so some true hits can be
+   missed; recall should be checked against an unfiltered search
+   whenever the alphabet or word size changes.
+*/
+public class KmerIndex {
+    /**
+       reduced alphabet:  residues in the same group are treated
+       as identical
+    */
+    private static final String[] groups = {
+        "LVIM", "C", "A", "G", "ST", "P", "FYW", "EDNQ", "KR", "H"
+    };
+
+    /**
+       words must be on the same diagonal, within this many
+       residues, to count as two hits
+    */
+    private static final int window = 40;
+
+    private static final int defaultWordSize = 4;
+
+    private static final int magic = 0x4b4d4552;
+
+    private static final byte[] residueGroups = new byte[128];
+    static {
+        Arrays.fill(residueGroups, (byte)-1);
+        for (int g=0; g<groups.length; g++) {
+            for (char c : groups[g].toCharArray()) {
+                residueGroups[c] = (byte)g;
+                residueGroups[Character.toLowerCase(c)] = (byte)g;
+            }
+        }
+    }
+
+    /**
+       indices already loaded, by file name; libraries with no
+       index map to null
+    */
+    private static final Map<String,KmerIndex> indices = new HashMap<String,KmerIndex>();
+
+    private final int wordSize;
+    private final String[] accessions;
+
+    // for each word, the models and positions where it occurs
+    private final int[][] wordModels;
+    private final int[][] wordPositions;
+
+    private KmerIndex(int wordSize,
+                      String[] accessions,
+                      int[][] wordModels,
+                      int[][] wordPositions) {
+        this.wordSize = wordSize;
+        this.accessions = accessions;
+        this.wordModels = wordModels;
+        this.wordPositions = wordPositions;
+    }
+
+    private static int wordCount(int wordSize) {
+        int rv = 1;
+        for (int i=0; i<wordSize; i++)
+            rv *= groups.length;
+        return rv;
+    }
+
+    /**
+       Returns the code of every word in a sequence, by starting
+       position; words containing residues outside the alphabet
+       are -1
+    */
+    private static int[] encode(String seq,
+                                int wordSize) {
+        int n = seq.length() - wordSize + 1;
+        if (n < 1)
+            return new int[0];
+        int[] rv = new int[n];
+        for (int i=0; i<n; i++) {
+            int code = 0;
+            for (int j=0; j<wordSize; j++) {
+                char c = seq.charAt(i+j);
+                int g = (c < 128 ? residueGroups[c] : -1);
+                if (g < 0) {
+                    code = -1;
+                    break;
+                }
+                code = code * groups.length + g;
+            }
+            rv[i] = code;
+        }
+        return rv;
+    }
+
+    /**
+       builds an index of consensus sequences, by model accession
+    */
+    public static KmerIndex build(Map<String,String> consensusSequences) {
+        int wordSize = defaultWordSize;
+        String[] accessions = consensusSequences.keySet().toArray(new String[0]);
+        Arrays.sort(accessions);
+        int nWords = wordCount(wordSize);
+        int[] counts = new int[nWords];
+        List<int[]> codes = new ArrayList<int[]>();
+        for (String accession : accessions) {
+            int[] modelCodes = encode(consensusSequences.get(accession), wordSize);
+            codes.add(modelCodes);
+            for (int code : modelCodes)
+                if (code >= 0)
+                    counts[code]++;
+        }
+        int[][] wordModels = new int[nWords][];
+        int[][] wordPositions = new int[nWords][];
+        for (int w=0; w<nWords; w++) {
+            wordModels[w] = new int[counts[w]];
+            wordPositions[w] = new int[counts[w]];
+        }
+        Arrays.fill(counts, 0);
+        for (int m=0; m<accessions.length; m++) {
+            int[] modelCodes = codes.get(m);
+            for (int pos=0; pos<modelCodes.length; pos++) {
+                int code = modelCodes[pos];
+                if (code < 0)
+                    continue;
+                wordModels[code][counts[code]] = m;
+                wordPositions[code][counts[code]] = pos;
+                counts[code]++;
+            }
+        }
+        return new KmerIndex(wordSize, accessions, wordModels, wordPositions);
+    }
+
+    /**
+       saves the index in a file
+    */
+    public void write(File f) throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            os.writeInt(magic);
+            os.writeInt(wordSize);
+            os.writeInt(accessions.length);
+            for (String accession : accessions)
+                os.writeUTF(accession);
+            for (int w=0; w<wordModels.length; w++) {
+                os.writeInt(wordModels[w].length);
+                for (int i=0; i<wordModels[w].length; i++) {
+                    os.writeInt(wordModels[w][i]);
+                    os.writeInt(wordPositions[w][i]);
+                }
+            }
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    /**
+       reads an index saved by write()
+    */
+    public static KmerIndex read(File f) throws IOException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (is.readInt() != magic)
+                throw new IOException("Not a k-mer index: "+f);
+            int wordSize = is.readInt();
+            String[] accessions = new String[is.readInt()];
+            for (int i=0; i<accessions.length; i++)
+                accessions[i] = is.readUTF();
+            int nWords = wordCount(wordSize);
+            int[][] wordModels = new int[nWords][];
+            int[][] wordPositions = new int[nWords][];
+            for (int w=0; w<nWords; w++) {
+                int n = is.readInt();
+                wordModels[w] = new int[n];
+                wordPositions[w] = new int[n];
+                for (int i=0; i<n; i++) {
+                    wordModels[w][i] = is.readInt();
+                    wordPositions[w][i] = is.readInt();
+                }
+            }
+            return new KmerIndex(wordSize, accessions, wordModels, wordPositions);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+       Returns the index for a library file, loading it if
+       necessary, or null if the library has no index
+    */
+    public static KmerIndex get(File libraryFile) throws Exception {
+        File f = new File(libraryFile.getPath()+".kmers");
+        String key = f.getCanonicalPath();
+        synchronized (indices) {
+            if (indices.containsKey(key))
+                return indices.get(key);
+            KmerIndex rv = (f.canRead() ? read(f) : null);
+            indices.put(key, rv);
+            return rv;
+        }
+    }
+
+    /**
+       returns the accessions of the models that a protein
+       could hit
+    */
+    public Set<String> getCandidates(String seq) {
+        Set<String> rv = new HashSet<String>();
+        int[] codes = encode(seq, wordSize);
+        // last word position that hit each model on each diagonal
+        Map<Long,Integer> lastHits = new HashMap<Long,Integer>();
+        long diagonals = seq.length() + 200000L;
+        for (int j=0; j<codes.length; j++) {
+            int code = codes[j];
+            if (code < 0)
+                continue;
+            int[] models = wordModels[code];
+            int[] positions = wordPositions[code];
+            for (int i=0; i<models.length; i++) {
+                String accession = accessions[models[i]];
+                if (rv.contains(accession))
+                    continue;
+                long key = models[i] * diagonals + (j - positions[i] + 100000L);
+                Integer last = lastHits.get(key);
+                if ((last != null) &&
+                    (j - last >= wordSize) &&
+                    (j - last <= window))
+                    rv.add(accession);
+                else if ((last == null) || (j - last > window))
+                    lastHits.put(key, j);
+            }
+        }
+        return rv;
+    }
+}
@@ -0,0 +1,396 @@
+package domainannotation;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+   Parses the text report from hmmscan, like
+   DomainAnnotationImpl.parseHmmerOutput, but much faster on big
+   files:  the file is memory-mapped, and lines are scanned as bytes,
+   with no Strings or other objects made for each line or hit.
+   Model names are looked up in a table of the library's accessions,
+   so the callback gets the same String object for every hit to a
+   model.  Hits are reported in the same order, and with the same
+   values, as parseHmmerOutput.
+*/
+public class MappedHmmerParser {
+    /**
+       largest part of the file mapped at once
+    */
+    private static final int windowSize = 1 << 28;
+
+    /**
+       bytes copied out of the mapped file at once
+    */
+    private static final int blockSize = 1 << 20;
+
+    private static final byte[] queryTag = "Query:".getBytes();
+    private static final byte[] domainTag = "Domain annotation for each model (and alignments):".getBytes();
+    private static final byte[] modelTag = ">> ".getBytes();
+
+    // where the parser is in a query's report
+    private static final int SCAN = 0;
+    private static final int MODEL = 1;
+    private static final int HEADER = 2;
+    private static final int ROWS = 3;
+
+    private static final double[] powersOf10 = new double[23];
+    static {
+        powersOf10[0] = 1.0;
+        for (int i=1; i<powersOf10.length; i++)
+            powersOf10[i] = powersOf10[i-1] * 10.0;
+    }
+
+    private final DomainAnnotationImpl.DomainHitCallback callback;
+
+    // accessions, in an open-addressing hash table keyed by bytes
+    private final byte[][] tableKeys;
+    private final String[] tableNames;
+    private final long[] tableLengths;
+
+    private byte[] data = new byte[blockSize];
+    private int state = SCAN;
+    private int headerLines = 0;
+    private int featurePos = -1;
+    private String modelName = null;
+    private long modelLength = 0;
+
+    // end of the last token read by nextToken, and the value
+    // read by parseInt or parseDouble
+    private int tokenEnd;
+    private int intValue;
+    private double doubleValue;
+
+    private MappedHmmerParser(Map<String,Long> modelNameToLength,
+                              DomainAnnotationImpl.DomainHitCallback callback) {
+        this.callback = callback;
+        int size = Integer.highestOneBit(Math.max(1, modelNameToLength.size()) * 2) * 2;
+        tableKeys = new byte[size][];
+        tableNames = new String[size];
+        tableLengths = new long[size];
+        for (String name : modelNameToLength.keySet()) {
+            byte[] key = name.getBytes();
+            int slot = hash(key, 0, key.length) & (size-1);
+            while (tableKeys[slot] != null)
+                slot = (slot+1) & (size-1);
+            tableKeys[slot] = key;
+            tableNames[slot] = name;
+            tableLengths[slot] = modelNameToLength.get(name).longValue();
+        }
+    }
+
+    /**
+       Parses an hmmscan text report, passing each hit to a callback
+    */
+    public static void parse(File outFile,
+                             Map<String,Long> modelNameToLength,
+                             DomainAnnotationImpl.DomainHitCallback callback) throws Exception {
+        new MappedHmmerParser(modelNameToLength, callback).parse(outFile, 0L, outFile.length());
+    }
+
+    /**
+       Parses part of an hmmscan text report, from byte start up to
+       (but not including) byte end; start should be the beginning
+       of a "Query:" line, and end the beginning of another one, or
+       the end of the file
+    */
+    public static void parse(File outFile,
+                             long start,
+                             long end,
+                             Map<String,Long> modelNameToLength,
+                             DomainAnnotationImpl.DomainHitCallback callback) throws Exception {
+        new MappedHmmerParser(modelNameToLength, callback).parse(outFile, start, end);
+    }
+
+    private void parse(File outFile,
+                       long start,
+                       long limit) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(outFile, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            long size = Math.min(limit, fc.size());
+            long pos = start;
+            // bytes at the start of data left over from the last block
+            int carry = 0;
+            while (pos < size) {
+                int length = (int)Math.min(windowSize, size-pos);
+                MappedByteBuffer window = fc.map(FileChannel.MapMode.READ_ONLY, pos, length);
+                pos += length;
+                // scanning a byte array is much faster than calling
+                // get() on the mapped buffer, so copy it a block at
+                // a time, parsing only whole lines
+                while (window.hasRemaining()) {
+                    if (carry == data.length)
+                        data = Arrays.copyOf(data, data.length*2);
+                    int n = Math.min(window.remaining(), data.length-carry);
+                    window.get(data, carry, n);
+                    int end = carry+n;
+                    int lineStart = 0;
+                    for (int i=carry; i<end; i++) {
+                        if (data[i] == '\n') {
+                            parseLine(lineStart, i);
+                            lineStart = i+1;
+                        }
+                    }
+                    carry = end-lineStart;
+                    System.arraycopy(data, lineStart, data, 0, carry);
+                }
+            }
+            if (carry > 0)
+                parseLine(0, carry);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    private static int hash(byte[] b,
+                            int start,
+                            int end) {
+        int h = 0;
+        for (int i=start; i<end; i++)
+            h = 31*h + b[i];
+        return h ^ (h >>> 16);
+    }
+
+    private boolean startsWith(int start,
+                               int end,
+                               byte[] tag) {
+        if (end - start < tag.length)
+            return false;
+        for (int i=0; i<tag.length; i++)
+            if (data[start+i] != tag[i])
+                return false;
+        return true;
+    }
+
+    private String lineString(int start,
+                              int end) {
+        byte[] b = new byte[end-start];
+        for (int i=start; i<end; i++)
+            b[i-start] = data[i];
+        return new String(b);
+    }
+
+    private static boolean isSpace(byte b) {
+        return ((b == ' ') || (b == '\t') || (b == '\r') || (b == '\f'));
+    }
+
+    /**
+       returns the start of the next token at or after pos, and sets
+       tokenEnd to its end; throws NoSuchElementException if there
+       are no more tokens in the line
+    */
+    private int nextToken(int pos,
+                          int end) {
+        while ((pos < end) && isSpace(data[pos]))
+            pos++;
+        if (pos >= end)
+            throw new NoSuchElementException();
+        tokenEnd = pos;
+        while ((tokenEnd < end) && !isSpace(data[tokenEnd]))
+            tokenEnd++;
+        return pos;
+    }
+
+    /**
+       Parses an integer at the start of a token, like StringUtil.atoi,
+       into intValue; returns the end of the token
+    */
+    private int parseInt(int pos,
+                         int end) {
+        int start = nextToken(pos, end);
+        int i = start;
+        boolean negative = false;
+        if ((i < tokenEnd) && ((data[i] == '-') || (data[i] == '+'))) {
+            negative = (data[i] == '-');
+            i++;
+        }
+        int value = 0;
+        while ((i < tokenEnd) && (data[i] >= '0') && (data[i] <= '9'))
+            value = value*10 + (data[i++] - '0');
+        intValue = (negative ? -value : value);
+        return tokenEnd;
+    }
+
+    /**
+       Parses a decimal number token into doubleValue, giving the
+       same result as Double.parseDouble; returns the end of the
+       token.  Numbers with few enough digits are converted exactly
+       with one multiplication or division; others fall back to
+       Double.parseDouble.
+    */
+    private int parseDouble(int pos,
+                            int end) {
+        int start = nextToken(pos, end);
+        int i = start;
+        boolean negative = false;
+        if ((data[i] == '-') || (data[i] == '+')) {
+            negative = (data[i] == '-');
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        while ((i < tokenEnd) && (data[i] >= '0') && (data[i] <= '9')) {
+            if (mantissa > 0 || data[i] != '0')
+                digits++;
+            mantissa = mantissa*10 + (data[i++] - '0');
+            anyDigits = true;
+        }
+        if ((i < tokenEnd) && (data[i] == '.')) {
+            i++;
+            while ((i < tokenEnd) && (data[i] >= '0') && (data[i] <= '9')) {
+                if (mantissa > 0 || data[i] != '0')
+                    digits++;
+                mantissa = mantissa*10 + (data[i++] - '0');
+                exponent--;
+                anyDigits = true;
+            }
+        }
+        if ((i < tokenEnd) && ((data[i] == 'e') || (data[i] == 'E'))) {
+            i++;
+            boolean negativeExponent = false;
+            if ((i < tokenEnd) && ((data[i] == '-') || (data[i] == '+'))) {
+                negativeExponent = (data[i] == '-');
+                i++;
+            }
+            int e = 0;
+            while ((i < tokenEnd) && (data[i] >= '0') && (data[i] <= '9') && (e < 100000))
+                e = e*10 + (data[i++] - '0');
+            exponent += (negativeExponent ? -e : e);
+        }
+        if (anyDigits &&
+            (i == tokenEnd) &&
+            (digits <= 15) &&
+            (exponent >= -22) &&
+            (exponent <= 22)) {
+            double value = (double)mantissa;
+            if (exponent < 0)
+                value /= powersOf10[-exponent];
+            else
+                value *= powersOf10[exponent];
+            doubleValue = (negative ? -value : value);
+        }
+        else
+            doubleValue = Double.parseDouble(lineString(start, tokenEnd));
+        return tokenEnd;
+    }
+
+    /**
+       finds the model named by the token at pos, and sets modelName
+       and modelLength
+    */
+    private void findModel(int pos,
+                           int end,
+                           int lineStart) {
+        int start = nextToken(pos, end);
+        int slot;
+        int h = 0;
+        for (int i=start; i<tokenEnd; i++)
+            h = 31*h + data[i];
+        h ^= (h >>> 16);
+        int mask = tableKeys.length-1;
+        for (slot = h & mask; tableKeys[slot] != null; slot = (slot+1) & mask) {
+            byte[] key = tableKeys[slot];
+            if (key.length != tokenEnd-start)
+                continue;
+            boolean match = true;
+            for (int i=0; match && (i<key.length); i++)
+                match = (key[i] == data[start+i]);
+            if (match) {
+                modelName = tableNames[slot];
+                modelLength = tableLengths[slot];
+                return;
+            }
+        }
+        throw new IllegalStateException("No recognized domain in HMMER output line '"+lineString(lineStart, end)+"'");
+    }
+
+    /**
+       Parses one line, in the same way as parseHmmerOutput
+    */
+    private void parseLine(int start,
+                           int end) throws Exception {
+        // readLine also treats CR LF as the end of a line
+        if ((end > start) && (data[end-1] == '\r'))
+            end--;
+        if (state == SCAN) {
+            if (startsWith(start, end, queryTag)) {
+                parseInt(start+7, end);
+                featurePos = intValue;
+            }
+            else if (startsWith(start, end, domainTag))
+                state = MODEL;
+        }
+        else if (state == MODEL) {
+            if (!startsWith(start, end, modelTag)) {
+                state = SCAN;
+                return;
+            }
+            try {
+                findModel(start+3, end, start);
+            }
+            catch (NoSuchElementException e) {
+                throw new Exception("Format error in HMMER output line '"+lineString(start, end)+"'");
+            }
+            state = HEADER;
+            headerLines = 0;
+        }
+        else if (state == HEADER) {
+            // the two lines of column headers are skipped; the next
+            // line is either another model or the first domain
+            if (++headerLines < 3)
+                return;
+            if (startsWith(start, end, modelTag)) {
+                state = MODEL;
+                parseLine(start, end);
+                return;
+            }
+            state = ROWS;
+            parseLine(start, end);
+        }
+        else if (state == ROWS) {
+            if (end == start) {
+                // end of the domain table; this line would be
+                // checked for another model, and it never is one
+                state = SCAN;
+                return;
+            }
+            try {
+                int pos = parseDouble(start+7, end);
+                double score = doubleValue;
+                nextToken(pos, end); // bias
+                nextToken(tokenEnd, end); // c-evalue
+                pos = parseDouble(tokenEnd, end); // i-evalue
+                double evalue = doubleValue;
+                // these numbers are 1-offset, for
+                // compatibility with RPS-BLAST parsing code:
+                pos = parseInt(pos, end);
+                int hStart = intValue;
+                pos = parseInt(pos, end);
+                int hLength = intValue - hStart + 1;
+                nextToken(pos, end); // bounds
+                pos = parseInt(tokenEnd, end);
+                int aliStart = intValue;
+                parseInt(pos, end);
+                int l = intValue - aliStart + 1;
+
+                double coverage = (double)hLength / (double)modelLength;
+                callback.next(featurePos,
+                              modelName,
+                              (long)aliStart,
+                              (long)aliStart + l - 1,
+                              evalue,
+                              score,
+                              coverage);
+            }
+            catch (NoSuchElementException e) {
+                throw new Exception("Format error in HMMER output line '"+lineString(start, end)+"'");
+            }
+        }
+    }
+}
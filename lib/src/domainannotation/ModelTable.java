@@ -0,0 +1,148 @@
+package domainannotation;
+
+import java.io.*;
+import java.util.*;
+
+/**
+   A compact table of the models in a domain library:  the accession
+   and length of each model, and its trusted cutoff (the TC sequence
+   score threshold, for HMM libraries; NaN if the library has none).
+   This is all a search needs to know about the models, so searches
+   read this table instead of the DomainLibrary's domains map, which
+   is much bigger, and slow to fetch and deserialize.<p>
+
+   The table is built by DomainModelLibPreparation, and saved with
+   the library's other files, under the name of the library file
+   plus ".models".
+*/
+public class ModelTable {
+    private static final int magic = 0x4d4f444c;
+
+    /**
+       tables already loaded, by file name; libraries with no
+       table map to null
+    */
+    private static final Map<String,ModelTable> tables = new HashMap<String,ModelTable>();
+
+    private final String[] accessions;
+    private final int[] lengths;
+    private final double[] cutoffs;
+
+    // built on first use, then shared by every search
+    private Map<String,Long> modelNameToLength = null;
+
+    private ModelTable(String[] accessions,
+                       int[] lengths,
+                       double[] cutoffs) {
+        this.accessions = accessions;
+        this.lengths = lengths;
+        this.cutoffs = cutoffs;
+    }
+
+    /**
+       builds a table from each model's length and trusted cutoff
+       (which may be null, or missing for some models)
+    */
+    public static ModelTable build(Map<String,DomainModel> domains,
+                                   Map<String,Double> trustedCutoffs) {
+        String[] accessions = domains.keySet().toArray(new String[0]);
+        Arrays.sort(accessions);
+        int[] lengths = new int[accessions.length];
+        double[] cutoffs = new double[accessions.length];
+        for (int i=0; i<accessions.length; i++) {
+            lengths[i] = domains.get(accessions[i]).getLength().intValue();
+            Double cutoff = ((trustedCutoffs==null) ? null : trustedCutoffs.get(accessions[i]));
+            cutoffs[i] = ((cutoff==null) ? Double.NaN : cutoff.doubleValue());
+        }
+        return new ModelTable(accessions, lengths, cutoffs);
+    }
+
+    /**
+       saves the table in a file
+    */
+    public void write(File f) throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            os.writeInt(magic);
+            os.writeInt(accessions.length);
+            for (int i=0; i<accessions.length; i++) {
+                os.writeUTF(accessions[i]);
+                os.writeInt(lengths[i]);
+                os.writeDouble(cutoffs[i]);
+            }
+        }
+        finally {
+            os.close();
+        }
+    }
+
+    /**
+       reads a table saved by write()
+    */
+    public static ModelTable read(File f) throws IOException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        try {
+            if (is.readInt() != magic)
+                throw new IOException("Not a model table: "+f);
+            int n = is.readInt();
+            String[] accessions = new String[n];
+            int[] lengths = new int[n];
+            double[] cutoffs = new double[n];
+            for (int i=0; i<n; i++) {
+                accessions[i] = is.readUTF();
+                lengths[i] = is.readInt();
+                cutoffs[i] = is.readDouble();
+            }
+            return new ModelTable(accessions, lengths, cutoffs);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+       Returns the table for a library file, loading it if
+       necessary, or null if the library has no table
+    */
+    public static ModelTable get(File libraryFile) throws Exception {
+        File f = new File(libraryFile.getPath()+".models");
+        String key = f.getCanonicalPath();
+        synchronized (tables) {
+            if (tables.containsKey(key))
+                return tables.get(key);
+            ModelTable rv = (f.canRead() ? read(f) : null);
+            tables.put(key, rv);
+            return rv;
+        }
+    }
+
+    /**
+       returns the number of models
+    */
+    public int getModelCount() {
+        return accessions.length;
+    }
+
+    /**
+       returns the trusted cutoff of a model, or NaN if it has
+       none, or isn't in the table
+    */
+    public double getTrustedCutoff(String accession) {
+        int i = Arrays.binarySearch(accessions, accession);
+        return ((i < 0) ? Double.NaN : cutoffs[i]);
+    }
+
+    /**
+       Returns the length of each model, by accession.  The map is
+       shared, and can't be modified.
+    */
+    public synchronized Map<String,Long> getModelNameToLength() {
+        if (modelNameToLength == null) {
+            Map<String,Long> m = new HashMap<String,Long>(accessions.length*2);
+            for (int i=0; i<accessions.length; i++)
+                m.put(accessions[i], Long.valueOf(lengths[i]));
+            modelNameToLength = Collections.unmodifiableMap(m);
+        }
+        return modelNameToLength;
+    }
+}
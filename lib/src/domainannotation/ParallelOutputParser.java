@@ -0,0 +1,320 @@
+package domainannotation;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import us.kbase.common.utils.RpsBlastParser;
+
+/**
+   Parses large output files from hmmscan (text reports) or
+   RPS-BLAST (tabular output) on several threads.  The file is split
+   into segments that each start at the beginning of a query:  at a
+   "Query:" line for HMMER, or where the query id (the first column)
+   changes for RPS-BLAST.  Segments are parsed on a fork/join pool,
+   and the hits from each one are saved and passed to the callback
+   in the order of the segments in the file, from the calling
+   thread, so the callback sees exactly the same hits in the same
+   order as it would from DomainAnnotationImpl.parseSearchOutput.
+*/
+public class ParallelOutputParser {
+    /**
+       number of segments per thread; more than one evens out the
+       work if some queries have many more hits than others
+    */
+    private static final int segmentsPerThread = 4;
+
+    private static final byte[] queryTag = "Query:".getBytes();
+
+    /**
+       hits from one segment, in the order they were parsed
+    */
+    private static class HitList implements DomainAnnotationImpl.DomainHitCallback {
+        private int n = 0;
+        private int[] featurePos = new int[256];
+        private String[] accession = new String[256];
+        private long[] start = new long[256];
+        private long[] stop = new long[256];
+        private double[] evalue = new double[256];
+        private double[] bitscore = new double[256];
+        private double[] coverage = new double[256];
+
+        @Override
+        public void next(int featurePos,
+                         String accession,
+                         long start,
+                         long stop,
+                         double evalue,
+                         double bitscore,
+                         double coverage) {
+            if (n == this.featurePos.length) {
+                int size = n*2;
+                this.featurePos = Arrays.copyOf(this.featurePos, size);
+                this.accession = Arrays.copyOf(this.accession, size);
+                this.start = Arrays.copyOf(this.start, size);
+                this.stop = Arrays.copyOf(this.stop, size);
+                this.evalue = Arrays.copyOf(this.evalue, size);
+                this.bitscore = Arrays.copyOf(this.bitscore, size);
+                this.coverage = Arrays.copyOf(this.coverage, size);
+            }
+            this.featurePos[n] = featurePos;
+            this.accession[n] = accession;
+            this.start[n] = start;
+            this.stop[n] = stop;
+            this.evalue[n] = evalue;
+            this.bitscore[n] = bitscore;
+            this.coverage[n] = coverage;
+            n++;
+        }
+
+        /**
+           passes all the saved hits to another callback
+        */
+        public void replay(DomainAnnotationImpl.DomainHitCallback callback) throws Exception {
+            for (int i=0; i<n; i++)
+                callback.next(featurePos[i],
+                              accession[i],
+                              start[i],
+                              stop[i],
+                              evalue[i],
+                              bitscore[i],
+                              coverage[i]);
+        }
+    }
+
+    /**
+       reads lines from a file, starting at any offset, keeping
+       track of where each line starts
+    */
+    private static class LineScanner {
+        private final RandomAccessFile raf;
+        private final byte[] buffer = new byte[65536];
+        private int bufferPos = 0;
+        private int bufferEnd = 0;
+        private long bufferOffset;
+
+        // the last line read, and the offset where it started
+        public byte[] line = new byte[1024];
+        public int lineLength = 0;
+        public long lineStart;
+
+        public LineScanner(RandomAccessFile raf,
+                           long offset) throws IOException {
+            this.raf = raf;
+            raf.seek(offset);
+            bufferOffset = offset;
+        }
+
+        /**
+           reads the next line, without the newline; returns
+           false at the end of the file
+        */
+        public boolean readLine() throws IOException {
+            lineStart = bufferOffset + bufferPos;
+            lineLength = 0;
+            while (true) {
+                if (bufferPos == bufferEnd) {
+                    bufferOffset += bufferEnd;
+                    bufferPos = 0;
+                    bufferEnd = Math.max(0, raf.read(buffer));
+                    if (bufferEnd == 0)
+                        return (lineLength > 0);
+                }
+                byte b = buffer[bufferPos++];
+                if (b == '\n')
+                    return true;
+                if (lineLength == line.length)
+                    line = Arrays.copyOf(line, lineLength*2);
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    /**
+       Returns true if a file from a given program should be
+       parsed in parallel
+    */
+    public static boolean canParse(String program,
+                                   boolean hmmerDomTable) {
+        return (program.equals("rpsblast-2.2.30") ||
+                (program.equals("hmmscan-3.1b1") && !hmmerDomTable));
+    }
+
+    /**
+       Parses a file of search output on a pool, passing each hit
+       to a callback
+    */
+    public static void parse(final String program,
+                             final File outFile,
+                             final Map<String,Long> modelNameToLength,
+                             DomainAnnotationImpl.DomainHitCallback callback,
+                             ForkJoinPool pool,
+                             final File tempDir) throws Exception {
+        final boolean hmmer = !program.equals("rpsblast-2.2.30");
+        long[] bounds = findSegments(outFile,
+                                     hmmer,
+                                     pool.getParallelism() * segmentsPerThread);
+        List<ForkJoinTask<HitList>> tasks = new ArrayList<ForkJoinTask<HitList>>();
+        try {
+            for (int i=0; i<bounds.length-1; i++) {
+                final long start = bounds[i];
+                final long end = bounds[i+1];
+                tasks.add(pool.submit(new Callable<HitList>() {
+                        @Override
+                        public HitList call() throws Exception {
+                            HitList hits = new HitList();
+                            if (hmmer)
+                                MappedHmmerParser.parse(outFile, start, end, modelNameToLength, hits);
+                            else
+                                parseRpsBlastSegment(outFile, start, end, modelNameToLength, hits, tempDir);
+                            return hits;
+                        }
+                    }));
+            }
+            for (int i=0; i<tasks.size(); i++) {
+                HitList hits;
+                try {
+                    hits = tasks.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception)
+                        throw (Exception)cause;
+                    throw e;
+                }
+                // free each segment's hits as soon as they are used
+                tasks.set(i, null);
+                hits.replay(callback);
+            }
+        }
+        finally {
+            for (ForkJoinTask<HitList> task : tasks)
+                if (task != null)
+                    task.cancel(true);
+        }
+    }
+
+    /**
+       RpsBlastParser only reads whole files, so each segment is
+       copied to a temp file first
+    */
+    private static void parseRpsBlastSegment(File outFile,
+                                             long start,
+                                             long end,
+                                             Map<String,Long> modelNameToLength,
+                                             DomainAnnotationImpl.DomainHitCallback callback,
+                                             File tempDir) throws Exception {
+        File segmentFile = File.createTempFile("rps", ".tab", tempDir);
+        try {
+            FileInputStream is = new FileInputStream(outFile);
+            FileOutputStream os = new FileOutputStream(segmentFile);
+            try {
+                FileChannel in = is.getChannel();
+                FileChannel out = os.getChannel();
+                long pos = start;
+                while (pos < end) {
+                    long n = in.transferTo(pos, end-pos, out);
+                    if (n <= 0)
+                        throw new IOException("Error copying RPS-BLAST output "+outFile);
+                    pos += n;
+                }
+            }
+            finally {
+                is.close();
+                os.close();
+            }
+            RpsBlastParser.processRpsOutput(segmentFile,
+                                            DomainAnnotationImpl.makeRpsBlastCallback(modelNameToLength, callback));
+        }
+        finally {
+            segmentFile.delete();
+        }
+    }
+
+    /**
+       Splits a file into about nSegments segments, each starting at
+       the beginning of a query.  Returns the offset where each
+       segment starts, followed by the size of the file.
+    */
+    public static long[] findSegments(File f,
+                                      boolean hmmer,
+                                      int nSegments) throws IOException {
+        long size = f.length();
+        List<Long> bounds = new ArrayList<Long>();
+        bounds.add(Long.valueOf(0L));
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            for (int i=1; i<nSegments; i++) {
+                long target = size * i / nSegments;
+                long last = bounds.get(bounds.size()-1).longValue();
+                if (target <= last)
+                    continue;
+                long bound = nextBoundary(raf, target, hmmer);
+                if ((bound > last) && (bound < size))
+                    bounds.add(Long.valueOf(bound));
+            }
+        }
+        finally {
+            raf.close();
+        }
+        long[] rv = new long[bounds.size()+1];
+        for (int i=0; i<bounds.size(); i++)
+            rv[i] = bounds.get(i).longValue();
+        rv[bounds.size()] = size;
+        return rv;
+    }
+
+    /**
+       returns the offset of the first query at or after
+       an offset, or the end of the file if there isn't one
+    */
+    private static long nextBoundary(RandomAccessFile raf,
+                                     long offset,
+                                     boolean hmmer) throws IOException {
+        // start at the beginning of a line
+        LineScanner ls = new LineScanner(raf, offset-1);
+        if (!ls.readLine())
+            return raf.length();
+        if (hmmer) {
+            while (ls.readLine()) {
+                if (startsWith(ls.line, ls.lineLength, queryTag))
+                    return ls.lineStart;
+            }
+        }
+        else {
+            if (!ls.readLine())
+                return raf.length();
+            byte[] query = Arrays.copyOf(ls.line, queryLength(ls.line, ls.lineLength));
+            while (ls.readLine()) {
+                int l = queryLength(ls.line, ls.lineLength);
+                if ((l != query.length) || !startsWith(ls.line, l, query))
+                    return ls.lineStart;
+            }
+        }
+        return raf.length();
+    }
+
+    private static boolean startsWith(byte[] line,
+                                      int length,
+                                      byte[] tag) {
+        if (length < tag.length)
+            return false;
+        for (int i=0; i<tag.length; i++)
+            if (line[i] != tag[i])
+                return false;
+        return true;
+    }
+
+    /**
+       length of the first (tab-separated) column in tabular
+       RPS-BLAST output
+    */
+    private static int queryLength(byte[] line,
+                                   int length) {
+        for (int i=0; i<length; i++)
+            if (line[i] == '\t')
+                return i;
+        return length;
+    }
+}
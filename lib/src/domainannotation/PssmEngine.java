@@ -0,0 +1,517 @@
+package domainannotation;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import us.kbase.common.utils.RpsBlastParser;
+
+/**
+   Searches proteins against an RPS-BLAST library (COG, CDD, SMART)
+   without running rpsblast, for jobs too small to be worth starting
+   a process.  Profiles are read from the files written by
+   makeprofiledb:  the scaled position-specific scores from the .rps
+   file, the per-profile Karlin-Altschul K and scaling factor from
+   the .aux file, and the profile accessions from the list of .smp
+   files the library was built from (the library's main file).
+   Libraries are kept in memory for the lifetime of the process.<p>
+
+   Each protein is aligned to each profile with Smith-Waterman, using
+   the library's affine gap costs.  Alignments are passed to a
+   RpsBlastParser callback with the same fields rpsblast reports; the
+   subject sequence is the profile's consensus.  E-values use the
+   BLOSUM62 gapped statistics that rpsblast uses, with a simpler
+   length correction, so they are close to, but not the same as,
+   those from rpsblast.
+*/
+public class PssmEngine {
+    /**
+       NCBIstdaa alphabet, used for the columns of the .rps file
+    */
+    private static final String stdaa = "-ABCDEFGHIKLMNPQRSTVWXYZU*OJ";
+
+    private static final int RPS_MAGIC_NUM = 0x1e16;
+    private static final int RPS_MAGIC_NUM_28 = 0x1e17;
+
+    /**
+       gapped lambda and H for BLOSUM62, gap costs 11/1 (the
+       makeprofiledb default)
+    */
+    private static final double lambda = 0.267;
+    private static final double entropy = 0.14;
+
+    /**
+       scores at or below this (scaled) value mark the sentinel
+       row after each profile
+    */
+    private static final int sentinelScore = -10000;
+
+    /**
+       at most this many alignments are reported for each pair
+       of protein and profile
+    */
+    private static final int maxAlignments = 10;
+
+    /**
+       column in a score row for each ASCII character
+    */
+    private static final byte[] residueColumns = new byte[128];
+    static {
+        Arrays.fill(residueColumns, (byte)stdaa.indexOf('X'));
+        for (int i=1; i<stdaa.length(); i++) {
+            residueColumns[stdaa.charAt(i)] = (byte)i;
+            residueColumns[Character.toLowerCase(stdaa.charAt(i))] = (byte)i;
+        }
+    }
+
+    /**
+       libraries already loaded, by file name
+    */
+    private static final Map<String,PssmEngine> libraries = new ConcurrentHashMap<String,PssmEngine>();
+
+    private final List<Profile> profiles;
+    private final int columns;
+    private final int gapOpen;
+    private final int gapExtend;
+    private final double scale;
+    private final long totalLength;
+
+    /**
+       One profile:  scores are scaled, and stored a row (position)
+       at a time, with one column per NCBIstdaa letter
+    */
+    private static class Profile {
+        String accession;
+        short[] scores;
+        int length;
+        String consensus;
+        double k;
+    }
+
+    /**
+       loads a library, given the name of its list of .smp files
+    */
+    private PssmEngine(File listFile) throws Exception {
+        // accessions, in the order of the profiles
+        List<String> accessions = new ArrayList<String>();
+        BufferedReader infile = new BufferedReader(new FileReader(listFile));
+        try {
+            String buffer;
+            while ((buffer = infile.readLine()) != null) {
+                buffer = new File(buffer.trim()).getName();
+                if (buffer.length()==0)
+                    continue;
+                if (buffer.endsWith(".smp"))
+                    buffer = buffer.substring(0, buffer.length()-4);
+                accessions.add(buffer);
+            }
+        }
+        finally {
+            infile.close();
+        }
+
+        // scores
+        profiles = new ArrayList<Profile>();
+        RandomAccessFile raf = new RandomAccessFile(listFile.getPath()+".rps", "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buf.getInt(0);
+            if ((magic != RPS_MAGIC_NUM) && (magic != RPS_MAGIC_NUM_28)) {
+                buf.order(ByteOrder.BIG_ENDIAN);
+                magic = buf.getInt(0);
+            }
+            if ((magic != RPS_MAGIC_NUM) && (magic != RPS_MAGIC_NUM_28))
+                throw new IllegalStateException("Unrecognized RPS-BLAST database "+listFile);
+            columns = (magic == RPS_MAGIC_NUM_28 ? 28 : 26);
+            int nProfiles = buf.getInt(4);
+            if (nProfiles != accessions.size())
+                throw new IllegalStateException("RPS-BLAST database "+listFile+" has "+nProfiles+" profiles, but "+accessions.size()+" are listed");
+            int[] offsets = new int[nProfiles+1];
+            for (int i=0; i<=nProfiles; i++)
+                offsets[i] = buf.getInt(8+4*i);
+            int matrixStart = 8+4*(nProfiles+1);
+            for (int p=0; p<nProfiles; p++) {
+                int rows = offsets[p+1] - offsets[p];
+                int pos = matrixStart + 4*columns*offsets[p];
+                // drop the sentinel row
+                if ((rows > 0) && isSentinel(buf, pos + 4*columns*(rows-1)))
+                    rows--;
+                short[] scores = new short[rows*columns];
+                for (int c=0; c<scores.length; c++)
+                    scores[c] = (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, buf.getInt(pos+4*c)));
+                Profile prof = new Profile();
+                prof.accession = accessions.get(p);
+                prof.scores = scores;
+                prof.length = rows;
+                prof.consensus = makeConsensus(scores, rows);
+                profiles.add(prof);
+            }
+        }
+        finally {
+            raf.close();
+        }
+
+        // statistics:  matrix name, gap costs, ..., scaling factor,
+        // and then a length and K for each profile
+        List<String> tokens = new ArrayList<String>();
+        infile = new BufferedReader(new FileReader(listFile.getPath()+".aux"));
+        try {
+            String buffer;
+            while ((buffer = infile.readLine()) != null) {
+                StringTokenizer st = new StringTokenizer(buffer);
+                while (st.hasMoreTokens())
+                    tokens.add(st.nextToken());
+            }
+        }
+        finally {
+            infile.close();
+        }
+        int headerLength = tokens.size() - 2*profiles.size();
+        if (headerLength < 4)
+            throw new IllegalStateException("Format error in "+listFile+".aux");
+        if (!tokens.get(0).equals("BLOSUM62") ||
+            !tokens.get(1).equals("11") ||
+            !tokens.get(2).equals("1"))
+            throw new IllegalStateException("Unsupported scoring system in "+listFile+".aux");
+        scale = Double.parseDouble(tokens.get(headerLength-1));
+        gapOpen = (int)Math.round(11 * scale);
+        gapExtend = (int)Math.round(1 * scale);
+        long total = 0;
+        for (int p=0; p<profiles.size(); p++) {
+            profiles.get(p).k = Double.parseDouble(tokens.get(headerLength+2*p+1));
+            total += profiles.get(p).length;
+        }
+        totalLength = total;
+    }
+
+    /**
+       Returns the engine for an RPS-BLAST library, given its main
+       file (the list of .smp files), loading it if necessary
+    */
+    public static PssmEngine get(File listFile) throws Exception {
+        String key = listFile.getCanonicalPath();
+        PssmEngine rv = libraries.get(key);
+        if (rv == null) {
+            synchronized (libraries) {
+                rv = libraries.get(key);
+                if (rv == null) {
+                    rv = new PssmEngine(listFile);
+                    libraries.put(key, rv);
+                }
+            }
+        }
+        return rv;
+    }
+
+    private boolean isSentinel(ByteBuffer buf,
+                               int pos) {
+        for (int c=1; c<columns; c++)
+            if (buf.getInt(pos+4*c) > sentinelScore)
+                return false;
+        return true;
+    }
+
+    /**
+       the best-scoring standard residue at each position
+    */
+    private String makeConsensus(short[] scores,
+                                 int rows) {
+        String standard = "ACDEFGHIKLMNPQRSTVWY";
+        StringBuilder rv = new StringBuilder(rows);
+        for (int r=0; r<rows; r++) {
+            char best = 'X';
+            int bestScore = Integer.MIN_VALUE;
+            for (int i=0; i<standard.length(); i++) {
+                char c = standard.charAt(i);
+                int sc = scores[r*columns + stdaa.indexOf(c)];
+                if (sc > bestScore) {
+                    bestScore = sc;
+                    best = c;
+                }
+            }
+            rv.append(best);
+        }
+        return rv.toString();
+    }
+
+    /**
+       returns the number of profiles in the library
+    */
+    public int getProfileCount() {
+        return profiles.size();
+    }
+
+    /**
+       returns the consensus sequence of each profile, by accession
+    */
+    public Map<String,String> getConsensusSequences() {
+        Map<String,String> rv = new HashMap<String,String>();
+        for (Profile prof : profiles)
+            rv.put(prof.accession, prof.consensus);
+        return rv;
+    }
+
+    /**
+       E-value of a (scaled) score for a query of length m,
+       as in rpsblast, with a simple length correction
+    */
+    private double evalue(int score,
+                          double k,
+                          int m) {
+        double ell = Math.log(k * m * totalLength) / entropy;
+        ell = Math.max(0.0, Math.min(ell, m - 1.0/k));
+        double mEff = Math.max(1.0, m - ell);
+        double nEff = Math.max(1.0, totalLength - profiles.size() * ell);
+        return k * mEff * nEff * Math.exp(-lambda * score / scale);
+    }
+
+    private double bitscore(int score,
+                            double k) {
+        return (lambda * score / scale - Math.log(k)) / Math.log(2.0);
+    }
+
+    /**
+       DP rows and matrices, reused for all the profiles and
+       proteins searched by one thread
+    */
+    private static class Workspace {
+        int[] h, e;
+        int[] hm, em, fm;
+
+        void ensureRows(int l) {
+            if ((h == null) || (h.length < l+1)) {
+                h = new int[l+1];
+                e = new int[l+1];
+            }
+        }
+
+        void ensureMatrices(int cells) {
+            if ((hm == null) || (hm.length < cells)) {
+                hm = new int[cells];
+                em = new int[cells];
+                fm = new int[cells];
+            }
+        }
+    }
+
+    private static final int minusInf = Integer.MIN_VALUE / 4;
+
+    /**
+       Best local alignment score of a profile to a protein, in
+       linear space.  Masked query positions can't be aligned.
+    */
+    private int bestScore(Profile prof,
+                          byte[] seq,
+                          boolean[] masked,
+                          Workspace w) {
+        int l = seq.length;
+        w.ensureRows(l);
+        int[] h = w.h;
+        int[] e = w.e;
+        Arrays.fill(h, 0, l+1, 0);
+        Arrays.fill(e, 0, l+1, minusInf);
+        int best = 0;
+        short[] scores = prof.scores;
+        for (int i=1; i<=prof.length; i++) {
+            int row = (i-1)*columns;
+            int diag = 0;
+            int f = minusInf;
+            int hLeft = 0;
+            for (int j=1; j<=l; j++) {
+                // e: gap in the profile (query insertion), along i
+                int ej = Math.max(e[j] - gapExtend, h[j] - gapOpen - gapExtend);
+                e[j] = ej;
+                f = Math.max(f - gapExtend, hLeft - gapOpen - gapExtend);
+                int sc = (masked[j-1] ? minusInf : diag + scores[row+seq[j-1]]);
+                int hij = Math.max(0, Math.max(sc, Math.max(ej, f)));
+                diag = h[j];
+                h[j] = hij;
+                hLeft = hij;
+                if (hij > best)
+                    best = hij;
+            }
+        }
+        return best;
+    }
+
+    /**
+       Aligns a profile to a protein with full matrices, and passes
+       the best alignment to a callback.  Returns the aligned query
+       range (0-offset, inclusive).
+    */
+    private int[] align(Profile prof,
+                        byte[] seq,
+                        String query,
+                        boolean[] masked,
+                        int score,
+                        String queryName,
+                        Workspace w,
+                        RpsBlastParser.RpsBlastCallback callback) throws Exception {
+        short[] scores = prof.scores;
+        int m = prof.length;
+        int l = seq.length;
+        int width = l+1;
+        w.ensureMatrices((m+1)*width);
+        int[] hm = w.hm, em = w.em, fm = w.fm;
+        Arrays.fill(hm, 0, width, 0);
+        Arrays.fill(em, 0, width, minusInf);
+        Arrays.fill(fm, 0, width, minusInf);
+        int bestI = 0, bestJ = 0, best = 0;
+        for (int i=1; i<=m; i++) {
+            int row = (i-1)*columns;
+            int r = i*width;
+            int prev = r-width;
+            hm[r] = 0;
+            em[r] = fm[r] = minusInf;
+            for (int j=1; j<=l; j++) {
+                em[r+j] = Math.max(em[prev+j] - gapExtend, hm[prev+j] - gapOpen - gapExtend);
+                fm[r+j] = Math.max(fm[r+j-1] - gapExtend, hm[r+j-1] - gapOpen - gapExtend);
+                int sc = (masked[j-1] ? minusInf : hm[prev+j-1] + scores[row+seq[j-1]]);
+                int hij = Math.max(0, Math.max(sc, Math.max(em[r+j], fm[r+j])));
+                hm[r+j] = hij;
+                if (hij > best) {
+                    best = hij;
+                    bestI = i;
+                    bestJ = j;
+                }
+            }
+        }
+
+        // trace back from the best cell; state 0 is H, 1 is E
+        // (gap in query), 2 is F (gap in profile)
+        StringBuilder qseq = new StringBuilder();
+        StringBuilder sseq = new StringBuilder();
+        int i = bestI, j = bestJ, state = 0;
+        int identities = 0;
+        while ((i > 0) && (j > 0)) {
+            int cell = i*width+j;
+            if (state == 0) {
+                if (hm[cell] == 0)
+                    break;
+                if (hm[cell] == em[cell])
+                    state = 1;
+                else if (hm[cell] == fm[cell])
+                    state = 2;
+                else {
+                    char q = query.charAt(j-1);
+                    char s = prof.consensus.charAt(i-1);
+                    if (Character.toUpperCase(q) == s)
+                        identities++;
+                    qseq.append(q);
+                    sseq.append(s);
+                    i--;
+                    j--;
+                }
+            }
+            else if (state == 1) {
+                qseq.append('-');
+                sseq.append(prof.consensus.charAt(i-1));
+                if (em[cell] == hm[cell-width] - gapOpen - gapExtend)
+                    state = 0;
+                i--;
+            }
+            else {
+                qseq.append(query.charAt(j-1));
+                sseq.append('-');
+                if (fm[cell] == hm[cell-1] - gapOpen - gapExtend)
+                    state = 0;
+                j--;
+            }
+        }
+        qseq.reverse();
+        sseq.reverse();
+        double ident = 100.0 * identities / qseq.length();
+        // the E-value is formatted as rpsblast prints it, and parsed
+        // again by the callback, so mustn't depend on the locale
+        callback.next(queryName,
+                      prof.accession,
+                      j+1,
+                      qseq.toString(),
+                      i+1,
+                      sseq.toString(),
+                      String.format(Locale.ROOT, "%.2e", evalue(score, prof.k, l)),
+                      bitscore(score, prof.k),
+                      ident);
+        return new int[] { j, bestJ-1 };
+    }
+
+    /**
+       Searches a set of proteins (by position) against all the
+       profiles in the library, in a given number of threads, passing
+       each alignment with an E-value of at most maxEvalue to a
+       callback, with the position as the query name.  Alignments to
+       the same profile don't overlap in the query.  If prefilter is
+       not null, each protein is only aligned to its candidate
+       profiles.  The callback must be thread safe.
+    */
+    public void search(Map<Integer,String> seqs,
+                       final double maxEvalue,
+                       final KmerIndex prefilter,
+                       int threads,
+                       final RpsBlastParser.RpsBlastCallback callback) throws Exception {
+        final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return new Workspace();
+            }
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<Object>> searches = new ArrayList<Future<Object>>();
+            for (final Map.Entry<Integer,String> entry : seqs.entrySet()) {
+                searches.add(pool.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            String query = entry.getValue();
+                            String queryName = ""+entry.getKey();
+                            byte[] seq = new byte[query.length()];
+                            for (int i=0; i<seq.length; i++) {
+                                char c = query.charAt(i);
+                                seq[i] = residueColumns[c < 128 ? c : 'X'];
+                                if (seq[i] >= columns)
+                                    seq[i] = residueColumns['X'];
+                            }
+                            Workspace w = workspaces.get();
+                            boolean[] masked = new boolean[seq.length];
+                            Set<String> candidates = (prefilter==null ? null : prefilter.getCandidates(query));
+                            for (Profile prof : profiles) {
+                                if ((candidates != null) && !candidates.contains(prof.accession))
+                                    continue;
+                                boolean isMasked = false;
+                                for (int n=0; n<maxAlignments; n++) {
+                                    int score = bestScore(prof, seq, masked, w);
+                                    if ((score <= 0) ||
+                                        (evalue(score, prof.k, seq.length) > maxEvalue))
+                                        break;
+                                    int[] range = align(prof, seq, query, masked, score, queryName, w, callback);
+                                    Arrays.fill(masked, range[0], range[1]+1, true);
+                                    isMasked = true;
+                                }
+                                if (isMasked)
+                                    Arrays.fill(masked, false);
+                            }
+                            return null;
+                        }
+                    }));
+            }
+            for (Future<Object> f : searches) {
+                try {
+                    f.get();
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception)
+                        throw (Exception)cause;
+                    throw e;
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+}
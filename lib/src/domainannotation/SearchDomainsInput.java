@@ -18,6 +18,16 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
  * dms_ref dms_ref - set of domain models that will be searched in defined genome
  * string ws - workspace
  * string output_result_id - id of resulting object of type DomainAnnotation
+ * domain_annotation_ref prior_annotation_ref - optional reference to an
+ *     earlier DomainAnnotation of a previous version of the same genome,
+ *     made with the same set of domain models.  Hits for features with
+ *     the same id and protein sequence are copied from it, and only new
+ *     or changed features are searched.
+ * int streaming - optional; if 1, the genome is read and searched
+ *     a window of proteins at a time, with memory use independent of
+ *     the size of the genome.  Meant for very large (e.g., metagenome)
+ *     genomes.  Can't be combined with prior_annotation_ref.
+ * @optional prior_annotation_ref streaming
  * </pre>
  * 
  */
@@ -27,7 +37,9 @@ import com.fasterxml.jackson.annotation.JsonPropertyOrder;
     "genome_ref",
     "dms_ref",
     "ws",
-    "output_result_id"
+    "output_result_id",
+    "prior_annotation_ref",
+    "streaming"
 })
 public class SearchDomainsInput {
 
@@ -39,6 +51,10 @@ public class SearchDomainsInput {
     private String ws;
     @JsonProperty("output_result_id")
     private String outputResultId;
+    @JsonProperty("prior_annotation_ref")
+    private String priorAnnotationRef;
+    @JsonProperty("streaming")
+    private Long streaming;
     private Map<String, Object> additionalProperties = new HashMap<String, Object>();
 
     @JsonProperty("genome_ref")
@@ -101,6 +117,36 @@ public class SearchDomainsInput {
         return this;
     }
 
+    @JsonProperty("prior_annotation_ref")
+    public String getPriorAnnotationRef() {
+        return priorAnnotationRef;
+    }
+
+    @JsonProperty("prior_annotation_ref")
+    public void setPriorAnnotationRef(String priorAnnotationRef) {
+        this.priorAnnotationRef = priorAnnotationRef;
+    }
+
+    public SearchDomainsInput withPriorAnnotationRef(String priorAnnotationRef) {
+        this.priorAnnotationRef = priorAnnotationRef;
+        return this;
+    }
+
+    @JsonProperty("streaming")
+    public Long getStreaming() {
+        return streaming;
+    }
+
+    @JsonProperty("streaming")
+    public void setStreaming(Long streaming) {
+        this.streaming = streaming;
+    }
+
+    public SearchDomainsInput withStreaming(Long streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
     @JsonAnyGetter
     public Map<String, Object> getAdditionalProperties() {
         return this.additionalProperties;
@@ -113,7 +159,7 @@ public class SearchDomainsInput {
 
     @Override
     public String toString() {
-        return ((((((((((("SearchDomainsInput"+" [genomeRef=")+ genomeRef)+", dmsRef=")+ dmsRef)+", ws=")+ ws)+", outputResultId=")+ outputResultId)+", additionalProperties=")+ additionalProperties)+"]");
+        return ((((((((((((((("SearchDomainsInput"+" [genomeRef=")+ genomeRef)+", dmsRef=")+ dmsRef)+", ws=")+ ws)+", outputResultId=")+ outputResultId)+", priorAnnotationRef=")+ priorAnnotationRef)+", streaming=")+ streaming)+", additionalProperties=")+ additionalProperties)+"]");
     }
 
 }
@@ -0,0 +1,675 @@
+package domainannotation;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.databind.*;
+
+import us.kbase.auth.AuthToken;
+import us.kbase.common.service.*;
+import us.kbase.workspace.*;
+import us.kbase.kbasegenomes.*;
+
+/**
+   Domain search for genomes too big to hold in memory, such as
+   metagenome assemblies with millions of proteins.  The Genome is
+   saved to a file as it comes from the workspace, and read back one
+   feature at a time.  Proteins are searched in windows of a fixed
+   size; after each window is searched, its annotation elements are
+   sorted by location and spilled to a run file on disk.  The runs
+   are then merged into a DomainAnnotation, which is written to a
+   file and streamed back to the workspace.<p>
+
+   Memory use depends on the window size, not on the number of
+   features or contigs:  contig lengths are spilled to sorted runs
+   too, and per-contig feature counts are spilled while the runs are
+   merged, then joined with the lengths.
+*/
+public class StreamingSearch {
+    /**
+       one annotation element, plus what's needed to sort and index it
+    */
+    private static class Element {
+        long order;
+        String contigId;
+        boolean hasProtein;
+        Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element;
+
+        void write(DataOutputStream os) throws IOException {
+            os.writeLong(order);
+            os.writeUTF(contigId);
+            os.writeBoolean(hasProtein);
+            os.writeUTF(element.getE1());
+            os.writeLong(element.getE2());
+            os.writeLong(element.getE3());
+            os.writeLong(element.getE4());
+            Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = element.getE5();
+            os.writeInt(domains.size());
+            for (String accession : domains.keySet()) {
+                os.writeUTF(accession);
+                List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(accession);
+                os.writeInt(places.size());
+                for (Tuple5<Long, Long, Double, Double, Double> place : places) {
+                    os.writeLong(place.getE1());
+                    os.writeLong(place.getE2());
+                    os.writeDouble(place.getE3());
+                    os.writeDouble(place.getE4());
+                    os.writeDouble(place.getE5());
+                }
+            }
+        }
+
+        /**
+           reads the next element from a run, or returns null at the
+           end of the run
+        */
+        static Element read(DataInputStream is) throws IOException {
+            Element rv = new Element();
+            try {
+                rv.order = is.readLong();
+            }
+            catch (EOFException e) {
+                return null;
+            }
+            rv.contigId = is.readUTF();
+            rv.hasProtein = is.readBoolean();
+            rv.element = new Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>()
+                .withE1(is.readUTF())
+                .withE2(is.readLong())
+                .withE3(is.readLong())
+                .withE4(is.readLong())
+                .withE5(new TreeMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>());
+            int nDomains = is.readInt();
+            for (int i=0; i<nDomains; i++) {
+                String accession = is.readUTF();
+                int nPlaces = is.readInt();
+                List<Tuple5<Long, Long, Double, Double, Double>> places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>(nPlaces);
+                for (int j=0; j<nPlaces; j++)
+                    places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                               .withE1(is.readLong())
+                               .withE2(is.readLong())
+                               .withE3(is.readDouble())
+                               .withE4(is.readDouble())
+                               .withE5(is.readDouble()));
+                rv.element.getE5().put(accession, places);
+            }
+            return rv;
+        }
+    }
+
+    /**
+       Looks up contig lengths from sorted runs of (contig id,
+       length) pairs.  Contigs must be looked up in sorted order.
+    */
+    private static class ContigLengths {
+        private final List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+
+        // next pair from each run: {id, length, stream}
+        private final PriorityQueue<Object[]> heads = new PriorityQueue<Object[]>(11, new Comparator<Object[]>() {
+                @Override
+                public int compare(Object[] o1, Object[] o2) {
+                    return ((String)o1[0]).compareTo((String)o2[0]);
+                }
+            });
+
+        ContigLengths(List<File> runs) throws IOException {
+            for (File run : runs) {
+                DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                inputs.add(is);
+                readNext(is);
+            }
+        }
+
+        private void readNext(DataInputStream is) throws IOException {
+            String id;
+            try {
+                id = is.readUTF();
+            }
+            catch (EOFException e) {
+                return;
+            }
+            heads.add(new Object[] { id, Long.valueOf(is.readLong()), is });
+        }
+
+        /**
+           returns the length of a contig, or null if the genome
+           doesn't list it
+        */
+        Long get(String id) throws IOException {
+            while (!heads.isEmpty() && (((String)heads.peek()[0]).compareTo(id) < 0)) {
+                Object[] head = heads.poll();
+                readNext((DataInputStream)head[2]);
+            }
+            if (heads.isEmpty() || !heads.peek()[0].equals(id))
+                return null;
+            return (Long)heads.peek()[1];
+        }
+
+        void close() {
+            for (DataInputStream is : inputs)
+                try { is.close(); } catch (Exception ignore) {}
+        }
+    }
+
+    /**
+       sorts elements the same way as a regular search: by contig,
+       then start, then order in the genome
+    */
+    private static final Comparator<Element> elementOrder = new Comparator<Element>() {
+        @Override
+        public int compare(Element o1, Element o2) {
+            int rv = o1.contigId.compareTo(o2.contigId);
+            if (rv == 0)
+                rv = Long.compare(o1.element.getE2(), o2.element.getE2());
+            if (rv == 0)
+                rv = Long.compare(o1.order, o2.order);
+            return rv;
+        }
+    };
+
+    private final WorkspaceClient wc;
+    private final List<DomainLibrary> libs;
+    private final String shockURL;
+    private final AuthToken token;
+    private final int windowSize;
+
+    private final List<Element> window = new ArrayList<Element>();
+    private final List<String> windowSeqs = new ArrayList<String>();
+    private int windowProteins = 0;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<File> lengthRuns = new ArrayList<File>();
+    private long order = 0;
+    private long protCount = 0;
+
+    // notes for the report, from each library's searches
+    private final List<String> notes = new ArrayList<String>();
+
+    /**
+       makes a search of a list of libraries, with windows of
+       windowSize proteins
+    */
+    public StreamingSearch(WorkspaceClient wc,
+                           List<DomainLibrary> libs,
+                           String shockURL,
+                           AuthToken token,
+                           int windowSize) {
+        this.wc = wc;
+        this.libs = libs;
+        this.shockURL = shockURL;
+        this.token = token;
+        this.windowSize = Math.max(1, windowSize);
+    }
+
+    /**
+       returns notes about the search, for the report; only valid
+       after the search is run
+    */
+    public List<String> getNotes() {
+        return notes;
+    }
+
+    /**
+       Searches a genome, and saves the DomainAnnotation in a
+       workspace under a given name or id.  Returns the reference
+       to the saved object.
+    */
+    public String run(String genomeRef,
+                      String domainModelSetRef,
+                      String ws,
+                      String id,
+                      List<ProvenanceAction> provenance) throws Exception {
+        File genomeFile = File.createTempFile("genome", ".json", DomainAnnotationImpl.tempDir);
+        File outFile = File.createTempFile("annotation", ".json", DomainAnnotationImpl.tempDir);
+        File indexFile = File.createTempFile("index", ".bin", DomainAnnotationImpl.tempDir);
+        File contigIdsFile = File.createTempFile("contigs", ".bin", DomainAnnotationImpl.tempDir);
+        File contigLengthsFile = File.createTempFile("lengths", ".bin", DomainAnnotationImpl.tempDir);
+        File contigFile = File.createTempFile("counts", ".bin", DomainAnnotationImpl.tempDir);
+        try {
+            // read genome, searching a window at a time, and
+            // spilling contig ids and lengths
+            wc._setFileForNextRpcResponse(genomeFile);
+            ObjectData data = DomainAnnotationImpl.getGenomeSubset(wc, genomeRef);
+            String genomeName = null;
+            ObjectMapper mapper = UObject.getMapper();
+            JsonParser jp = data.getData().getPlacedStream();
+            try {
+                if (jp.nextToken() != JsonToken.START_OBJECT)
+                    throw new IllegalStateException("Genome "+genomeRef+" is not a JSON object");
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = jp.getCurrentName();
+                    JsonToken t = jp.nextToken();
+                    if (field.equals("features") && (t == JsonToken.START_ARRAY)) {
+                        while (jp.nextToken() == JsonToken.START_OBJECT)
+                            addFeature(mapper.readValue(jp, Feature.class));
+                    }
+                    else if (field.equals("contig_ids") && (t == JsonToken.START_ARRAY)) {
+                        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(contigIdsFile)));
+                        try {
+                            while (jp.nextToken() != JsonToken.END_ARRAY)
+                                os.writeUTF(jp.getText());
+                        }
+                        finally {
+                            os.close();
+                        }
+                    }
+                    else if (field.equals("contig_lengths") && (t == JsonToken.START_ARRAY)) {
+                        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(contigLengthsFile)));
+                        try {
+                            while (jp.nextToken() != JsonToken.END_ARRAY)
+                                os.writeLong(jp.getLongValue());
+                        }
+                        finally {
+                            os.close();
+                        }
+                    }
+                    else if (field.equals("scientific_name") && (t == JsonToken.VALUE_STRING))
+                        genomeName = jp.getText();
+                    else
+                        jp.skipChildren();
+                }
+            }
+            finally {
+                jp.close();
+            }
+            genomeFile.delete();
+            searchWindow();
+            if (protCount == 0)
+                throw new IllegalStateException("There are no protein translations in genome " + genomeName + " (" + genomeRef + ")");
+
+            sortContigLengths(contigIdsFile, contigLengthsFile);
+            contigIdsFile.delete();
+            contigLengthsFile.delete();
+
+            Map<String,String> metadata = merge(genomeRef, domainModelSetRef, outFile, indexFile, contigFile);
+
+            JsonTokenStream jts = new JsonTokenStream(outFile);
+            try {
+                jts.setTrustedWholeJson(true);
+                ObjectSaveData saveData = new ObjectSaveData()
+                    .withType(DomainAnnotationImpl.domainAnnotationWsType)
+                    .withMeta(metadata)
+                    .withProvenance(provenance)
+                    .withData(new UObject(jts));
+                try {
+                    saveData.withObjid(Long.parseLong(id));
+                } catch (NumberFormatException ex) {
+                    saveData.withName(id);
+                }
+                return DomainAnnotationImpl.getRefFromObjectInfo(wc.saveObjects(new SaveObjectsParams().withWorkspace(ws).withObjects(Arrays.asList(saveData))).get(0));
+            }
+            finally {
+                jts.close();
+            }
+        }
+        finally {
+            genomeFile.delete();
+            outFile.delete();
+            indexFile.delete();
+            contigIdsFile.delete();
+            contigLengthsFile.delete();
+            contigFile.delete();
+            for (File f : runs)
+                f.delete();
+            for (File f : lengthRuns)
+                f.delete();
+        }
+    }
+
+    /**
+       Pairs each contig id reported in the genome with its length
+       (1 if the genome has no length for it), and spills the pairs
+       to runs sorted by contig id, windowSize pairs at a time
+    */
+    private void sortContigLengths(File idsFile,
+                                   File lengthsFile) throws Exception {
+        DataInputStream ids = new DataInputStream(new BufferedInputStream(new FileInputStream(idsFile)));
+        DataInputStream lengths = new DataInputStream(new BufferedInputStream(new FileInputStream(lengthsFile)));
+        try {
+            TreeMap<String,Long> chunk = new TreeMap<String,Long>();
+            boolean moreLengths = true;
+            while (true) {
+                String id;
+                try {
+                    id = ids.readUTF();
+                }
+                catch (EOFException e) {
+                    break;
+                }
+                Long length = new Long(1);
+                if (moreLengths) {
+                    try {
+                        length = Long.valueOf(lengths.readLong());
+                    }
+                    catch (EOFException e) {
+                        moreLengths = false;
+                    }
+                }
+                chunk.put(id, length);
+                if (chunk.size() >= windowSize)
+                    spillContigLengths(chunk);
+            }
+            spillContigLengths(chunk);
+        }
+        finally {
+            ids.close();
+            lengths.close();
+        }
+    }
+
+    /**
+       writes a sorted chunk of contig lengths to a run file
+    */
+    private void spillContigLengths(TreeMap<String,Long> chunk) throws Exception {
+        if (chunk.isEmpty())
+            return;
+        File run = File.createTempFile("lengths", ".bin", DomainAnnotationImpl.tempDir);
+        lengthRuns.add(run);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (Map.Entry<String,Long> entry : chunk.entrySet()) {
+                os.writeUTF(entry.getKey());
+                os.writeLong(entry.getValue().longValue());
+            }
+        }
+        finally {
+            os.close();
+        }
+        chunk.clear();
+    }
+
+    /**
+       adds a feature to the current window, searching the window
+       if it's full
+    */
+    private void addFeature(Feature feat) throws Exception {
+        Element e = new Element();
+        e.order = order++;
+        e.element = DomainAnnotationImpl.makeElement(feat);
+        if (e.element == null)
+            return;
+        e.contigId = feat.getLocation().get(0).getE1();
+        String seq = feat.getProteinTranslation();
+        e.hasProtein = ((seq != null) && !seq.isEmpty());
+        window.add(e);
+        windowSeqs.add(e.hasProtein ? seq : null);
+        if (e.hasProtein) {
+            windowProteins++;
+            protCount++;
+        }
+        if (windowProteins >= windowSize)
+            searchWindow();
+    }
+
+    /**
+       searches all the libraries against the proteins in the current
+       window, then sorts the window and spills it to a run file
+    */
+    private void searchWindow() throws Exception {
+        if (window.isEmpty())
+            return;
+
+        if (windowProteins > 0) {
+            // one callback for all libraries, so only one library
+            // adds hits at a time
+            final DomainAnnotationImpl.DomainHitCallback callback = new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public synchronized void next(int featurePos,
+                                                  String accession,
+                                                  long start,
+                                                  long stop,
+                                                  double evalue,
+                                                  double bitscore,
+                                                  double coverage) {
+                        Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = window.get(featurePos).element.getE5();
+                        List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(accession);
+                        if (places == null) {
+                            places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
+                            domains.put(accession, places);
+                        }
+                        places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                                   .withE1(start)
+                                   .withE2(stop)
+                                   .withE3(evalue)
+                                   .withE4(bitscore)
+                                   .withE5(coverage));
+                    }
+                };
+            final int concurrentLibraries = Math.max(1, Math.min(DomainAnnotationImpl.maxConcurrentLibraries, libs.size()));
+            ExecutorService pool = Executors.newFixedThreadPool(concurrentLibraries);
+            try {
+                List<Future<Object>> searches = new ArrayList<Future<Object>>();
+                for (final DomainLibrary dl : libs) {
+                    searches.add(pool.submit(new Callable<Object>() {
+                            @Override
+                            public Object call() throws Exception {
+                                DomainAnnotationImpl.searchSequences(windowSeqs, dl, shockURL, token, concurrentLibraries, callback, notes);
+                                return null;
+                            }
+                        }));
+                }
+                for (Future<Object> f : searches) {
+                    try {
+                        f.get();
+                    }
+                    catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception)
+                            throw (Exception)cause;
+                        throw e;
+                    }
+                }
+            }
+            finally {
+                pool.shutdownNow();
+            }
+        }
+
+        Collections.sort(window, elementOrder);
+        File run = File.createTempFile("run", ".bin", DomainAnnotationImpl.tempDir);
+        runs.add(run);
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        try {
+            for (Element e : window)
+                e.write(os);
+        }
+        finally {
+            os.close();
+        }
+        window.clear();
+        windowSeqs.clear();
+        windowProteins = 0;
+    }
+
+    /**
+       Merges the sorted runs into a DomainAnnotation object, written
+       as JSON to outFile.  The feature_to_contig_and_index entries
+       and the feature count of each contig are only known while the
+       data is being written, so they're spilled to indexFile and
+       contigFile, and copied into outFile at the end.  Returns the
+       object's metadata.
+    */
+    private Map<String,String> merge(String genomeRef,
+                                     String domainModelSetRef,
+                                     File outFile,
+                                     File indexFile,
+                                     File contigFile) throws Exception {
+        final List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+        DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        DataOutputStream contigOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(contigFile)));
+        JsonGenerator jg = new JsonFactory().createGenerator(outFile, JsonEncoding.UTF8);
+        ContigLengths lengths = new ContigLengths(lengthRuns);
+        long annotatedFeatures = 0;
+        Set<String> accessions = new HashSet<String>();
+        try {
+            // heads of all the runs, in order
+            PriorityQueue<Object[]> heads = new PriorityQueue<Object[]>(Math.max(1, runs.size()), new Comparator<Object[]>() {
+                    @Override
+                    public int compare(Object[] o1, Object[] o2) {
+                        return elementOrder.compare((Element)o1[0], (Element)o2[0]);
+                    }
+                });
+            for (File run : runs) {
+                DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+                inputs.add(is);
+                Element e = Element.read(is);
+                if (e != null)
+                    heads.add(new Object[] { e, is });
+            }
+
+            jg.writeStartObject();
+            jg.writeStringField("genome_ref", genomeRef);
+            jg.writeStringField("used_dms_ref", domainModelSetRef);
+            jg.writeObjectFieldStart("data");
+            String contigId = null;
+            long index = 0;
+            boolean hasProtein = false;
+            while (!heads.isEmpty()) {
+                Object[] head = heads.poll();
+                Element e = (Element)head[0];
+                if (!e.contigId.equals(contigId)) {
+                    if (contigId != null) {
+                        jg.writeEndArray();
+                        writeContig(contigOut, contigId, index, hasProtein);
+                    }
+                    contigId = e.contigId;
+                    index = 0;
+                    hasProtein = false;
+                    jg.writeArrayFieldStart(contigId);
+                }
+                writeElement(jg, e.element);
+                if (e.hasProtein) {
+                    hasProtein = true;
+                    indexOut.writeUTF(e.element.getE1());
+                    indexOut.writeUTF(contigId);
+                    indexOut.writeLong(index);
+                    if (!e.element.getE5().isEmpty()) {
+                        annotatedFeatures++;
+                        accessions.addAll(e.element.getE5().keySet());
+                    }
+                }
+                index++;
+                Element next = Element.read((DataInputStream)head[1]);
+                if (next != null)
+                    heads.add(new Object[] { next, head[1] });
+            }
+            if (contigId != null) {
+                jg.writeEndArray();
+                writeContig(contigOut, contigId, index, hasProtein);
+            }
+            jg.writeEndObject();
+            indexOut.close();
+            contigOut.close();
+
+            // contigs reported in the genome, or with proteins, as in
+            // a regular search; missing contigs are length 1.  Contigs
+            // were written in sorted order, so their lengths can be
+            // looked up as the length runs are merged
+            jg.writeObjectFieldStart("contig_to_size_and_feature_count");
+            DataInputStream contigIn = new DataInputStream(new BufferedInputStream(new FileInputStream(contigFile)));
+            try {
+                while (true) {
+                    String id;
+                    try {
+                        id = contigIn.readUTF();
+                    }
+                    catch (EOFException eof) {
+                        break;
+                    }
+                    long count = contigIn.readLong();
+                    boolean real = contigIn.readBoolean();
+                    Long length = lengths.get(id);
+                    if ((length == null) && !real)
+                        continue;
+                    jg.writeArrayFieldStart(id);
+                    jg.writeNumber(length==null ? 1L : length.longValue());
+                    jg.writeNumber(count);
+                    jg.writeEndArray();
+                }
+            }
+            finally {
+                contigIn.close();
+            }
+            jg.writeEndObject();
+
+            jg.writeObjectFieldStart("feature_to_contig_and_index");
+            DataInputStream indexIn = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                while (true) {
+                    String featId;
+                    try {
+                        featId = indexIn.readUTF();
+                    }
+                    catch (EOFException eof) {
+                        break;
+                    }
+                    jg.writeArrayFieldStart(featId);
+                    jg.writeString(indexIn.readUTF());
+                    jg.writeNumber(indexIn.readLong());
+                    jg.writeEndArray();
+                }
+            }
+            finally {
+                indexIn.close();
+            }
+            jg.writeEndObject();
+            jg.writeEndObject();
+        }
+        finally {
+            try { indexOut.close(); } catch (Exception ignore) {}
+            try { contigOut.close(); } catch (Exception ignore) {}
+            lengths.close();
+            jg.close();
+            for (DataInputStream is : inputs)
+                try { is.close(); } catch (Exception ignore) {}
+        }
+
+        // same (historical) keys as DomainAnnotationImpl.getMetadata
+        Map<String,String> metadata = new HashMap<String,String>();
+        metadata.put("annotated_domains",""+annotatedFeatures);
+        metadata.put("annotated_features",""+accessions.size());
+        return metadata;
+    }
+
+    /**
+       spills the feature count of a contig, and whether it has
+       any proteins
+    */
+    private static void writeContig(DataOutputStream os,
+                                    String contigId,
+                                    long count,
+                                    boolean hasProtein) throws IOException {
+        os.writeUTF(contigId);
+        os.writeLong(count);
+        os.writeBoolean(hasProtein);
+    }
+
+    /**
+       writes one annotation element as a JSON tuple
+    */
+    private static void writeElement(JsonGenerator jg,
+                                     Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> element) throws IOException {
+        jg.writeStartArray();
+        jg.writeString(element.getE1());
+        jg.writeNumber(element.getE2().longValue());
+        jg.writeNumber(element.getE3().longValue());
+        jg.writeNumber(element.getE4().longValue());
+        jg.writeStartObject();
+        for (Map.Entry<String, List<Tuple5<Long, Long, Double, Double, Double>>> domain : element.getE5().entrySet()) {
+            jg.writeArrayFieldStart(domain.getKey());
+            for (Tuple5<Long, Long, Double, Double, Double> place : domain.getValue()) {
+                jg.writeStartArray();
+                jg.writeNumber(place.getE1().longValue());
+                jg.writeNumber(place.getE2().longValue());
+                jg.writeNumber(place.getE3().doubleValue());
+                jg.writeNumber(place.getE4().doubleValue());
+                jg.writeNumber(place.getE5().doubleValue());
+                jg.writeEndArray();
+            }
+            jg.writeEndArray();
+        }
+        jg.writeEndObject();
+        jg.writeEndArray();
+    }
+}
@@ -138,6 +138,458 @@ public class DomainAnnotationServerTest {
         System.out.println(report.getTextMessage());   
     }
     
+    /**
+       Check that we can annotate a ProteinSet made from some
+       E. coli proteins with SMART, and that the result is saved
+       as a ProteinDomainAnnotation.
+    */
+    @Test
+    public void searchProteinsPSSM() throws Exception {
+        Genome genome = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(ecoliRef))).get(0).getData().asClassInstance(Genome.class);
+        List<Protein> proteins = new ArrayList<Protein>();
+        for (Feature feat : genome.getFeatures()) {
+            String seq = feat.getProteinTranslation();
+            if ((seq == null) || (seq.length() == 0))
+                continue;
+            proteins.add(new Protein()
+                         .withId(feat.getId())
+                         .withMd5(feat.getMd5())
+                         .withSequence(seq)
+                         .withLength(Long.valueOf(seq.length()))
+                         .withProteinFamilies(new ArrayList<ProteinFamily>())
+                         .withAliases(new ArrayList<String>())
+                         .withAnnotations(new ArrayList<Tuple3<String, String, Double>>()));
+            if (proteins.size() == 100)
+                break;
+        }
+        wsClient.saveObjects(new SaveObjectsParams()
+                             .withWorkspace(getWsName())
+                             .withObjects(Arrays.asList(new ObjectSaveData()
+                                                        .withType("KBaseGenomes.ProteinSet")
+                                                        .withName("test_proteins")
+                                                        .withData(new UObject(new ProteinSet()
+                                                                              .withId("test_proteins")
+                                                                              .withMd5("")
+                                                                              .withSourceId("kb|g.0")
+                                                                              .withSource("KBase")
+                                                                              .withProteins(proteins))))));
+        SearchProteinDomainsInput input = new SearchProteinDomainsInput()
+            .withProteinSetRef("test_proteins")
+            .withDmsRef(smartRef)
+            .withWs(getWsName())
+            .withOutputResultId("test_protein_domains");
+        SearchDomainsOutput output = DomainAnnotationImpl.runProteins(wsURL,
+                                                                      shockURL,
+                                                                      token,
+                                                                      input);
+        Assert.assertNotNull(output);
+        Assert.assertNotNull(output.getOutputResultId());
+        ObjectData data = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(output.getOutputResultId()))).get(0);
+        assertTrue(data.getInfo().getE3().startsWith(DomainAnnotationImpl.proteinDomainAnnotationWsType+"-"));
+        ProteinDomainAnnotation pda = data.getData().asClassInstance(ProteinDomainAnnotation.class);
+        assertTrue(pda.getData().size() > 0);
+        String reportRef = output.getReportRef();
+        Assert.assertNotNull(reportRef);
+        Report report = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(reportRef))).get(0).getData().asClassInstance(us.kbase.kbasereport.Report.class);
+        Assert.assertNotNull(report);
+        System.out.println(report.getTextMessage());   
+    }
+    
+    /**
+       Check that we can annotate a GenomeList containing E. coli
+       with SMART, in batch mode.
+    */
+    @Test
+    public void searchBatchPSSM() throws Exception {
+        wsClient.saveObjects(new SaveObjectsParams()
+                             .withWorkspace(getWsName())
+                             .withObjects(Arrays.asList(new ObjectSaveData()
+                                                        .withType("KBaseCollections.GenomeList")
+                                                        .withName("test_genomes")
+                                                        .withData(new UObject(new us.kbase.kbasecollections.GenomeList()
+                                                                              .withElements(Arrays.asList(ecoliRef)))))));
+        SearchDomainsBatchInput input = new SearchDomainsBatchInput()
+            .withGenomeSetRef("test_genomes")
+            .withDmsRef(smartRef)
+            .withWs(getWsName());
+        SearchDomainsBatchOutput output = DomainAnnotationImpl.runBatch(wsURL,
+                                                                        shockURL,
+                                                                        token,
+                                                                        input);
+        Assert.assertNotNull(output);
+        assertEquals(output.getOutputResultIds().size(), 1);
+        String reportRef = output.getReportRef();
+        Assert.assertNotNull(reportRef);
+        Report report = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(reportRef))).get(0).getData().asClassInstance(us.kbase.kbasereport.Report.class);
+        Assert.assertNotNull(report);
+        System.out.println(report.getTextMessage());   
+    }
+    
+    /**
+       Check the recall of the k-mer prefilter:  the domains found
+       in E. coli proteins by the in-process HMM engine, searching
+       TIGRFAMs, with and without the prefilter.
+    */
+    @Test
+    public void prefilterRecall() throws Exception {
+        DomainModelSet dms = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(tigrRef))).get(0).getData().asClassInstance(DomainModelSet.class);
+        String libRef = dms.getDomainLibs().values().iterator().next();
+        DomainLibrary dl = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(libRef))).get(0).getData().asClassInstance(DomainLibrary.class);
+        DomainAnnotationImpl.prepareLibraryFiles(dl,
+                                                 shockURL,
+                                                 token);
+        File libFile = new File(DomainAnnotationImpl.getDomainsDir(), dl.getLibraryFiles().get(0).getFileName());
+        Map<String,Long> modelNameToLength = new HashMap<String,Long>();
+        for (String accession : dl.getDomains().keySet())
+            modelNameToLength.put(accession, dl.getDomains().get(accession).getLength());
+
+        Genome genome = wsClient.getObjects(Arrays.asList(new ObjectIdentity().withRef(ecoliRef))).get(0).getData().asClassInstance(Genome.class);
+        Map<Integer,String> seqs = new TreeMap<Integer,String>();
+        for (Feature feat : genome.getFeatures()) {
+            String seq = feat.getProteinTranslation();
+            if ((seq != null) && (seq.length() > 0))
+                seqs.put(seqs.size(), seq);
+            if (seqs.size() == 50)
+                break;
+        }
+
+        HmmEngine engine = HmmEngine.get(libFile);
+        KmerIndex index = KmerIndex.build(engine.getConsensusSequences());
+        final Set<String> allHits = new HashSet<String>();
+        final Set<String> filteredHits = new HashSet<String>();
+        engine.search(seqs, modelNameToLength, null, 16000000L, 4, new DomainAnnotationImpl.DomainHitCallback() {
+                @Override
+                public synchronized void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                    allHits.add(featurePos+" "+accession);
+                }
+            });
+        engine.search(seqs, modelNameToLength, index, 16000000L, 4, new DomainAnnotationImpl.DomainHitCallback() {
+                @Override
+                public synchronized void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                    filteredHits.add(featurePos+" "+accession);
+                }
+            });
+
+        long candidates = 0;
+        for (String seq : seqs.values())
+            candidates += index.getCandidates(seq).size();
+        Set<String> found = new HashSet<String>(allHits);
+        found.retainAll(filteredHits);
+        double recall = (allHits.isEmpty() ? 1.0 : (double)found.size() / allHits.size());
+        System.out.println("Prefilter recall "+found.size()+"/"+allHits.size()+" = "+recall+", with "+((double)candidates/seqs.size())+" of "+engine.getModelCount()+" models searched per protein");
+        assertEquals(filteredHits.size(), found.size());
+        assertTrue(recall >= 0.9);
+    }
+
+    @Test
+    public void rpsCoverage() throws Exception {
+        // random RPS-BLAST style alignments, with gaps in both sequences
+        Random r = new Random(17);
+        String residues = "ACDEFGHIKLMNPQRSTVWY";
+        int n = 10000;
+        String[] qseqs = new String[n];
+        String[] sseqs = new String[n];
+        int[] sstarts = new int[n];
+        int[] modelLengths = new int[n];
+        for (int i=0; i<n; i++) {
+            int l = 20 + r.nextInt(300);
+            StringBuilder q = new StringBuilder();
+            StringBuilder s = new StringBuilder();
+            int subjectResidues = 0;
+            for (int j=0; j<l; j++) {
+                int gap = r.nextInt(20);
+                q.append(gap==0 ? '-' : residues.charAt(r.nextInt(20)));
+                s.append(gap==1 ? '-' : residues.charAt(r.nextInt(20)));
+                if (gap != 1)
+                    subjectResidues++;
+            }
+            qseqs[i] = q.toString();
+            sseqs[i] = s.toString();
+            sstarts[i] = r.nextInt(50);
+            modelLengths[i] = sstarts[i] + subjectResidues + r.nextInt(50);
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long total = 0;
+        for (int i=0; i<n; i++) {
+            String alignedSeq = us.kbase.common.utils.AlignUtil.removeGapsFromSubject(modelLengths[i], qseqs[i], sstarts[i], sseqs[i]);
+            int coverage = 100 - us.kbase.common.utils.AlignUtil.getGapPercent(alignedSeq);
+            int qlen = us.kbase.common.utils.AlignUtil.removeGaps(qseqs[i]).length();
+            long coverageAndLength = DomainAnnotationImpl.getCoverageAndLength(modelLengths[i], qseqs[i], sstarts[i], sseqs[i]);
+            assertEquals(coverage, (int)(coverageAndLength >>> 32));
+            assertEquals(qlen, (int)coverageAndLength);
+        }
+        long before = mx.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<n; i++) {
+            String alignedSeq = us.kbase.common.utils.AlignUtil.removeGapsFromSubject(modelLengths[i], qseqs[i], sstarts[i], sseqs[i]);
+            total += 100 - us.kbase.common.utils.AlignUtil.getGapPercent(alignedSeq);
+            total += us.kbase.common.utils.AlignUtil.removeGaps(qseqs[i]).length();
+        }
+        long alignUtilBytes = mx.getThreadAllocatedBytes(threadId) - before;
+        before = mx.getThreadAllocatedBytes(threadId);
+        for (int i=0; i<n; i++) {
+            long coverageAndLength = DomainAnnotationImpl.getCoverageAndLength(modelLengths[i], qseqs[i], sstarts[i], sseqs[i]);
+            total -= (coverageAndLength >>> 32) + (int)coverageAndLength;
+        }
+        long singlePassBytes = mx.getThreadAllocatedBytes(threadId) - before;
+        System.out.println("Coverage allocation per hit: AlignUtil "+(alignUtilBytes/n)+" bytes, single pass "+(singlePassBytes/n)+" bytes");
+        assertEquals(0L, total);
+        assertTrue(singlePassBytes < alignUtilBytes / 10);
+    }
+
+    /**
+       makes a text hmmscan report for a number of queries, with
+       random hits to models named TIGR0 up to TIGR(models-1)
+    */
+    private static String makeHmmerReport(Random r,
+                                          int queries,
+                                          int models) {
+        StringBuilder report = new StringBuilder();
+        for (int q=0; q<queries; q++) {
+            report.append("Query:       "+q+"  [L=300]\n");
+            report.append("Scores for complete sequence (score includes all domains):\n\n");
+            report.append("Domain annotation for each model (and alignments):\n");
+            int nModels = r.nextInt(3);
+            for (int k=0; k<nModels; k++) {
+                report.append(">> TIGR"+r.nextInt(models)+"  description\n");
+                report.append("   #    score  bias  c-Evalue  i-Evalue hmmfrom  hmm to    alifrom  ali to    envfrom  env to     acc\n");
+                report.append(" ---   ------ ----- --------- --------- ------- -------    ------- -------    ------- -------    ----\n");
+                int nDomains = 1+r.nextInt(3);
+                for (int d=0; d<nDomains; d++)
+                    report.append("   "+(d+1)+" !  "+(50+r.nextInt(100))+".2   0.1   1.5e-10   "+(1+r.nextInt(9))+".3e-"+(5+r.nextInt(50))+"  "+(1+r.nextInt(20))+"  "+(60+r.nextInt(40))+" ..  "+(1+r.nextInt(100))+"  "+(120+r.nextInt(100))+" ..  1 250 .. 0.9\n");
+                report.append("\n  Alignments for each domain:\n\n");
+            }
+            report.append("//\n");
+        }
+        return report.toString();
+    }
+
+    /**
+       Check that a text hmmscan report gives the same hits when
+       read through a named pipe (as in streaming mode) as when
+       read from a file.
+    */
+    @Test
+    public void hmmerPipe() throws Exception {
+        Map<String,Long> modelNameToLength = new HashMap<String,Long>();
+        for (int i=0; i<20; i++)
+            modelNameToLength.put("TIGR"+i, Long.valueOf(100+i));
+        final byte[] data = makeHmmerReport(new Random(3), 200, 20).getBytes();
+        File tempDir = new File(config.get("scratch"));
+        File outFile = File.createTempFile("hmmer", ".txt", tempDir);
+        final File pipe = new File(outFile.getPath()+".pipe");
+        try {
+            FileOutputStream os = new FileOutputStream(outFile);
+            os.write(data);
+            os.close();
+            Process p = Runtime.getRuntime().exec(new String[] { "mkfifo", pipe.getAbsolutePath() });
+            assertEquals(0, p.waitFor());
+            Thread writer = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            FileOutputStream os = new FileOutputStream(pipe);
+                            os.write(data);
+                            os.close();
+                        }
+                        catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+            writer.start();
+            final List<String> pipeHits = new ArrayList<String>();
+            final List<String> fileHits = new ArrayList<String>();
+            DomainAnnotationImpl.parseSearchOutput("hmmscan-3.1b1", pipe, modelNameToLength, new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                        pipeHits.add(featurePos+" "+accession+" "+start+" "+stop+" "+evalue+" "+bitscore+" "+coverage);
+                    }
+                });
+            writer.join();
+            DomainAnnotationImpl.parseSearchOutput("hmmscan-3.1b1", outFile, modelNameToLength, new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                        fileHits.add(featurePos+" "+accession+" "+start+" "+stop+" "+evalue+" "+bitscore+" "+coverage);
+                    }
+                });
+            System.out.println("Parsed "+pipeHits.size()+" hits through a pipe");
+            assertTrue(fileHits.size() > 0);
+            assertEquals(fileHits, pipeHits);
+        }
+        finally {
+            outFile.delete();
+            pipe.delete();
+        }
+    }
+
+    /**
+       Check how much less a HitStore allocates than the nested
+       Tuple5 maps it replaces, for an E. coli sized set of hits.
+    */
+    @Test
+    public void hitStoreHeap() throws Exception {
+        Random r = new Random(21);
+        int nFeatures = 4500;
+        int n = 100000;
+        int[] featurePos = new int[n];
+        String[] accessions = new String[n];
+        for (int i=0; i<n; i++) {
+            featurePos[i] = r.nextInt(nFeatures);
+            accessions[i] = ("PF"+(10000+r.nextInt(5000))).intern();
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(threadId);
+        List<Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> maps = new ArrayList<Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>();
+        for (int pos=0; pos<nFeatures; pos++)
+            maps.add(new HashMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>());
+        for (int i=0; i<n; i++) {
+            Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = maps.get(featurePos[i]);
+            List<Tuple5<Long, Long, Double, Double, Double>> places = domains.get(accessions[i]);
+            if (places == null) {
+                places = new ArrayList<Tuple5<Long, Long, Double, Double, Double>>();
+                domains.put(accessions[i], places);
+            }
+            places.add(new Tuple5<Long, Long, Double, Double, Double>()
+                       .withE1((long)(i % 500))
+                       .withE2((long)(i % 500 + 100))
+                       .withE3(1.0e-10 * i)
+                       .withE4(20.0 + i)
+                       .withE5(0.5 + 1.0 / (i+2)));
+        }
+        long tupleBytes = mx.getThreadAllocatedBytes(threadId) - before;
+        before = mx.getThreadAllocatedBytes(threadId);
+        HitStore hits = new HitStore();
+        for (int i=0; i<n; i++)
+            hits.next(featurePos[i], accessions[i], i % 500, i % 500 + 100, 1.0e-10 * i, 20.0 + i, 0.5 + 1.0 / (i+2));
+        long storeBytes = mx.getThreadAllocatedBytes(threadId) - before;
+        System.out.println("Allocation per hit: Tuple5 maps "+(tupleBytes/n)+" bytes, HitStore "+(storeBytes/n)+" bytes");
+        assertEquals(n, hits.size());
+        assertEquals(nFeatures, maps.size());
+        assertTrue(storeBytes < tupleBytes / 2);
+    }
+
+    /**
+       Check that MappedHmmerParser gives the same hits as
+       parseHmmerOutput on a big text hmmscan report, and compare
+       their speed and allocation.
+    */
+    @Test
+    public void mappedHmmerParser() throws Exception {
+        final Map<String,Long> modelNameToLength = new HashMap<String,Long>();
+        for (int i=0; i<2000; i++)
+            modelNameToLength.put("TIGR"+i, Long.valueOf(100+i));
+        File outFile = File.createTempFile("hmmer", ".txt", new File(config.get("scratch")));
+        try {
+            FileOutputStream os = new FileOutputStream(outFile);
+            os.write(makeHmmerReport(new Random(18), 100000, 2000).getBytes());
+            os.close();
+
+            final List<String> streamHits = new ArrayList<String>();
+            final List<String> mappedHits = new ArrayList<String>();
+            BufferedReader infile = new BufferedReader(new FileReader(outFile));
+            DomainAnnotationImpl.parseHmmerOutput(infile, modelNameToLength, new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                        streamHits.add(featurePos+" "+accession+" "+start+" "+stop+" "+evalue+" "+bitscore+" "+coverage);
+                    }
+                });
+            infile.close();
+            MappedHmmerParser.parse(outFile, modelNameToLength, new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                        mappedHits.add(featurePos+" "+accession+" "+start+" "+stop+" "+evalue+" "+bitscore+" "+coverage);
+                    }
+                });
+            assertTrue(streamHits.size() > 0);
+            assertEquals(streamHits, mappedHits);
+
+            // time each parser, with a callback that makes nothing
+            final double[] sum = new double[1];
+            DomainAnnotationImpl.DomainHitCallback summer = new DomainAnnotationImpl.DomainHitCallback() {
+                    @Override
+                    public void next(int featurePos, String accession, long start, long stop, double evalue, double bitscore, double coverage) {
+                        sum[0] += featurePos + start + stop + bitscore + coverage;
+                    }
+                };
+            com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            long before = mx.getThreadAllocatedBytes(threadId);
+            long time = System.nanoTime();
+            infile = new BufferedReader(new FileReader(outFile));
+            DomainAnnotationImpl.parseHmmerOutput(infile, modelNameToLength, summer);
+            infile.close();
+            long streamTime = System.nanoTime() - time;
+            long streamBytes = mx.getThreadAllocatedBytes(threadId) - before;
+            double streamSum = sum[0];
+            sum[0] = 0.0;
+            before = mx.getThreadAllocatedBytes(threadId);
+            time = System.nanoTime();
+            MappedHmmerParser.parse(outFile, modelNameToLength, summer);
+            long mappedTime = System.nanoTime() - time;
+            long mappedBytes = mx.getThreadAllocatedBytes(threadId) - before;
+            System.out.println("Parsed "+streamHits.size()+" hits from "+(outFile.length()/1024/1024)+" MB:  parseHmmerOutput "+(streamTime/1000000)+" ms, "+(streamBytes/1024/1024)+" MB allocated; MappedHmmerParser "+(mappedTime/1000000)+" ms, "+(mappedBytes/1024/1024)+" MB allocated");
+            assertEquals(streamSum, sum[0], Math.abs(streamSum) * 1.0e-12);
+            // E-values under 1e-22 still go through Double.parseDouble
+            assertTrue(mappedBytes < streamBytes / 4);
+        }
+        finally {
+            outFile.delete();
+        }
+    }
+
+    private static Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>> makeElement(String featureId,
+                                                                                                                               String... accessions) {
+        Map<String, List<Tuple5<Long, Long, Double, Double, Double>>> domains = new HashMap<String, List<Tuple5<Long, Long, Double, Double, Double>>>();
+        for (String accession : accessions)
+            domains.put(accession, new ArrayList<Tuple5<Long, Long, Double, Double, Double>>(Arrays.asList(new Tuple5<Long, Long, Double, Double, Double>().withE1(1L).withE2(100L).withE3(1.0e-10).withE4(50.0).withE5(0.9))));
+        return new Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>().withE1(featureId).withE2(1L).withE3(300L).withE4(1L).withE5(domains);
+    }
+
+    /**
+       Check that E-values of unchanged features in an incremental
+       re-annotation are rescaled to count both the kept and the new
+       models hitting each protein.
+    */
+    @Test
+    public void rescaleDelta() throws Exception {
+        // TIGR3 was changed, so only TIGR1 and TIGR2 are kept
+        DomainAnnotation prior = new DomainAnnotation().withData(Collections.singletonMap("c1", Arrays.asList(makeElement("f1", "TIGR1", "TIGR2", "TIGR3"),
+                                                                                                              makeElement("f2", "TIGR1", "TIGR3"),
+                                                                                                              makeElement("f3", "TIGR3"),
+                                                                                                              makeElement("f5", "TIGR1"))));
+        // unchanged features after copyHits and the sub-library
+        // search for new models (TIGR4, TIGR5); f4 was changed
+        DomainAnnotation da = new DomainAnnotation().withData(Collections.singletonMap("c1", Arrays.asList(makeElement("f1", "TIGR1", "TIGR2", "TIGR4"),
+                                                                                                           makeElement("f2", "TIGR1"),
+                                                                                                           makeElement("f3", "TIGR4", "TIGR5"),
+                                                                                                           makeElement("f4", "TIGR4"),
+                                                                                                           makeElement("f5", "TIGR1", "TIGR4"))));
+        DomainAnnotationImpl.rescaleDeltaEvalues(da,
+                                                 prior,
+                                                 new HashSet<String>(Arrays.asList("f1", "f2", "f3", "f5")),
+                                                 new HashSet<String>(Arrays.asList("TIGR1", "TIGR2")),
+                                                 new HashSet<String>(Arrays.asList("TIGR1", "TIGR2", "TIGR3")));
+        List<Tuple5<String, Long, Long, Long, Map<String, List<Tuple5<Long, Long, Double, Double, Double>>>>> elements = da.getData().get("c1");
+        // f1:  2 kept and 1 new model hit it now; 3 did before
+        assertEquals(3.0e-10, elements.get(0).getE5().get("TIGR4").get(0).getE3().doubleValue(), 1.0e-20);
+        assertEquals(1.0e-10, elements.get(0).getE5().get("TIGR1").get(0).getE3().doubleValue(), 1.0e-20);
+        // f2:  1 kept model hits it now; 2 did before
+        assertEquals(0.5e-10, elements.get(1).getE5().get("TIGR1").get(0).getE3().doubleValue(), 1.0e-20);
+        // f3:  only new models
+        assertEquals(1.0e-10, elements.get(2).getE5().get("TIGR5").get(0).getE3().doubleValue(), 1.0e-20);
+        // f4 was searched against the whole library
+        assertEquals(1.0e-10, elements.get(3).getE5().get("TIGR4").get(0).getE3().doubleValue(), 1.0e-20);
+        // f5:  1 kept and 1 new model hit it now; 1 did before
+        assertEquals(2.0e-10, elements.get(4).getE5().get("TIGR1").get(0).getE3().doubleValue(), 1.0e-20);
+        assertEquals(2.0e-10, elements.get(4).getE5().get("TIGR4").get(0).getE3().doubleValue(), 1.0e-20);
+        // the prior annotation isn't changed
+        assertEquals(1.0e-10, prior.getData().get("c1").get(3).getE5().get("TIGR1").get(0).getE3().doubleValue(), 1.0e-20);
+    }
+
     @AfterClass
     public static void cleanup() {
         if (wsName != null) {